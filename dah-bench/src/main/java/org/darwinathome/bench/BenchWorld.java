@@ -0,0 +1,58 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+package org.darwinathome.bench;
+
+import org.darwinathome.Constants;
+import org.darwinathome.body.Being;
+import org.darwinathome.body.Embryo;
+import org.darwinathome.body.Speech;
+import org.darwinathome.genetics.Genome;
+import org.darwinathome.genetics.impl.PseudoNoise;
+import org.darwinathome.geometry.math.Arrow;
+import org.darwinathome.universe.World;
+
+/**
+ * A world that always starts from the same seed, with beings spread evenly over the surface so that
+ * every run of a benchmark sees the same population.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+class BenchWorld extends World {
+    private static final byte[] SEED_BYTES = {
+            (byte) 0x8A, (byte) 0x98, (byte) 0xAF, (byte) 0x9B, (byte) 0x63, (byte) 0xBB, (byte) 0x98, (byte) 0x31,
+            (byte) 0x62, (byte) 0x11, (byte) 0x3A, (byte) 0x71, (byte) 0x7F, (byte) 0x7E, (byte) 0x45, (byte) 0xAE
+    };
+    private static final double GOLDEN_ANGLE = Math.PI * (3 - Math.sqrt(5));
+
+    BenchWorld() {
+        this(Constants.FREQUENCY);
+    }
+
+    BenchWorld(int frequency) {
+        super(new PseudoNoise(new PseudoNoise.ClonableSeed(SEED_BYTES, 0)), frequency);
+    }
+
+    Being createBeing(int index, int count) {
+        double z = 1 - (2 * index + 1) / (double) count;
+        double radius = Math.sqrt(1 - z * z);
+        double angle = GOLDEN_ANGLE * index;
+        Arrow location = new Arrow(radius * Math.cos(angle), radius * Math.sin(angle), z);
+        location.setSpan(Constants.ROAM_RADIUS);
+        Arrow gaze = new Arrow(-Math.sin(angle), Math.cos(angle), 0);
+        gaze.sub(location, location.dot(gaze) / location.quadrance()).normalize();
+        String name = "BN" + index;
+        Embryo embryo = new Embryo(name, "Bench", new Speech(name), new Genome(getNoise()), null);
+        return createBeing(embryo, location, gaze);
+    }
+
+    void populate(int count) {
+        for (int walk = 0; walk < count; walk++) {
+            createBeing(walk, count);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+package org.darwinathome.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the benchmarks with the usual JMH command line, but write the results as JSON unless some other
+ * format is asked for, so that throughput can be compared from one release to the next.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class Benchmarks {
+    private static final String RESULT_FILE = "dah-bench.json";
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        if (!commandLine.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+            if (!commandLine.getResult().hasValue()) {
+                options.result(RESULT_FILE);
+            }
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,92 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+package org.darwinathome.bench;
+
+import org.darwinathome.body.Being;
+import org.darwinathome.client.Core;
+import org.darwinathome.client.MultiverseEvolutionImpl;
+import org.darwinathome.genetics.impl.PseudoNoise;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evolving a grown being the way the client does it, with the competitors spread over a number of
+ * threads, so that the speedup can be read off against the number of cores.  With -p earlyCulling=0.5
+ * half of the competitors of the same age are stopped at each checkpoint.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EvolutionBenchmark {
+    private static final byte[] SEED_BYTES = {1, 4, 1, 4, 2, 1, 3, 5, 6, 2, 3, 7, 3, 0, 9, 5};
+    private static final int MAX_GROWTH_TICKS = 100000;
+    private static final int ITERATIONS = 30;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"true"})
+    public boolean packed;
+
+    @Param({"0"})
+    public double earlyCulling;
+
+    private MultiverseEvolutionImpl evolution;
+
+    @Setup
+    public void growAncestor() {
+        BenchWorld world = new BenchWorld();
+        world.setPackedPhysics(packed);
+        Being ancestor = world.createBeing(0, 1);
+        for (int walk = 0; ancestor.getPhase() != Being.Phase.ADULT_LIFE; walk++) {
+            if (walk == MAX_GROWTH_TICKS) {
+                throw new RuntimeException("Being did not grow up in " + MAX_GROWTH_TICKS + " ticks, phase " + ancestor.getPhase());
+            }
+            world.experienceTime(1);
+        }
+        Core core = new Core();
+        core.setWorld(world);
+        evolution = new MultiverseEvolutionImpl(ancestor, core, new PseudoNoise(new PseudoNoise.ClonableSeed(SEED_BYTES, 0)));
+        evolution.setParallelism(threads);
+        evolution.setEarlyCulling(earlyCulling);
+    }
+
+    @TearDown
+    public void stop() {
+        evolution.setParallelism(1);
+    }
+
+    @Benchmark
+    public boolean experienceTime() {
+        if (evolution.experienceTime(ITERATIONS)) {
+            return true;
+        }
+        evolution.cull();
+        if (evolution.advanceLifespan()) {
+            evolution.resetLifespan();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,62 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+package org.darwinathome.bench;
+
+import org.darwinathome.geometry.structure.Fablob;
+import org.darwinathome.geometry.structure.Fabric;
+import org.darwinathome.geometry.structure.TensegritySphereFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packing fabrics into fablobs and unpacking them again, which is what saving and loading beings costs.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FablobBenchmark {
+
+    @Param({"2", "4", "8"})
+    public int frequency;
+
+    private Fabric fabric;
+    private byte[] bytes;
+
+    @Setup
+    public void createSphere() {
+        fabric = new TensegritySphereFactory(null).createSphere(frequency, 1);
+        fabric.executeTransformations(null);
+        bytes = new Fablob(fabric).getBytes();
+    }
+
+    @Benchmark
+    public byte[] pack() {
+        return new Fablob(fabric).getBytes();
+    }
+
+    @Benchmark
+    public Fabric unpack() {
+        return new Fablob(bytes).createFabric(null);
+    }
+}
@@ -0,0 +1,64 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+package org.darwinathome.bench;
+
+import org.darwinathome.body.Being;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole life of a being from embryo until it is an adult, in a world of its own.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GrowthBenchmark {
+    private static final int MAX_GROWTH_TICKS = 100000;
+
+    @Param({"false", "true"})
+    public boolean packed;
+
+    private BenchWorld world;
+    private Being being;
+
+    @Setup(Level.Invocation)
+    public void createEmbryo() {
+        world = new BenchWorld();
+        world.setPackedPhysics(packed);
+        being = world.createBeing(0, 1);
+    }
+
+    @Benchmark
+    public long grow() {
+        long ticks = 0;
+        while (being.getPhase() != Being.Phase.ADULT_LIFE) {
+            if (ticks++ == MAX_GROWTH_TICKS) {
+                throw new RuntimeException("Being did not grow up in " + MAX_GROWTH_TICKS + " ticks, phase " + being.getPhase());
+            }
+            world.experienceTime(1);
+        }
+        return ticks;
+    }
+}
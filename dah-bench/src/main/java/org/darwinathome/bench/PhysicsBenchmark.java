@@ -0,0 +1,68 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+package org.darwinathome.bench;
+
+import org.darwinathome.geometry.structure.Fabric;
+import org.darwinathome.geometry.structure.PackedPhysics;
+import org.darwinathome.geometry.structure.Physics;
+import org.darwinathome.geometry.structure.TensegritySphereFactory;
+import org.darwinathome.geometry.structure.Vertical;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One iteration of physics on tensegrity spheres of growing frequency, with either engine.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhysicsBenchmark {
+    private static final int SETTLE_ITERATIONS = 100;
+
+    @Param({"2", "4", "8", "16"})
+    public int frequency;
+
+    @Param({"false", "true"})
+    public boolean packed;
+
+    private Fabric fabric;
+    private Fabric.PhysicsTransformation physics;
+
+    @Setup
+    public void createSphere() {
+        Vertical vertical = new Vertical();
+        physics = packed ? new PackedPhysics(vertical) : new Physics(vertical);
+        fabric = new TensegritySphereFactory(null).createSphere(frequency, 1);
+        fabric.executeTransformations(null);
+        for (int walk = 0; walk < SETTLE_ITERATIONS; walk++) {
+            physics.transform(fabric);
+        }
+    }
+
+    @Benchmark
+    public Fabric transform() {
+        physics.transform(fabric);
+        return fabric;
+    }
+}
@@ -0,0 +1,71 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+package org.darwinathome.bench;
+
+import org.darwinathome.universe.Crew;
+import org.darwinathome.universe.Water;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One generation of water flowing between the surface patches, the way the world does it
+ * once per patch life but without the rain.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WaterBenchmark {
+
+    @Param({"20", "40"})
+    public int frequency;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private Water water;
+    private Crew workers;
+
+    @Setup
+    public void createSurface() {
+        water = new BenchWorld(frequency).getWater();
+        if (threads > 1) {
+            workers = new Crew(threads, "Water");
+        }
+    }
+
+    @TearDown
+    public void stop() {
+        if (workers != null) {
+            workers.shutdown();
+        }
+    }
+
+    @Benchmark
+    public float flow() {
+        float totalWater = water.flow(workers);
+        water.commit();
+        return totalWater;
+    }
+}
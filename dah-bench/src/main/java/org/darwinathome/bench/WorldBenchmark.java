@@ -0,0 +1,87 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+package org.darwinathome.bench;
+
+import org.darwinathome.body.Being;
+import org.darwinathome.geometry.math.Arrow;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * World ticks with a growing population, and looking for the being nearest to a direction among them.
+ * The beings are given some ticks to get going first, and the number of physics threads can be set
+ * with -p threads=n.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WorldBenchmark {
+    private static final double QUERY_ANGLE = Math.PI * (3 - Math.sqrt(5));
+
+    @Param({"10", "100", "1000"})
+    public int beings;
+
+    @Param({"500"})
+    public int settleTicks;
+
+    @Param({"1"})
+    public int threads;
+
+    @Param({"false"})
+    public boolean packed;
+
+    private BenchWorld world;
+    private Arrow direction = new Arrow();
+    private int query;
+
+    @Setup
+    public void populate() {
+        world = new BenchWorld();
+        world.setPackedPhysics(packed);
+        world.setParallelism(threads);
+        world.populate(beings);
+        for (int walk = 0; walk < settleTicks; walk++) {
+            world.experienceTime(1);
+        }
+    }
+
+    @TearDown
+    public void stop() {
+        world.setParallelism(1);
+    }
+
+    @Benchmark
+    public long experienceTime() {
+        world.experienceTime(1);
+        return world.getAge();
+    }
+
+    @Benchmark
+    public Being nearestBeing() {
+        double angle = QUERY_ANGLE * query++;
+        direction.set(Math.cos(angle), Math.sin(angle), Math.sin(angle * 0.7));
+        return world.getNearestBeing(direction, null);
+    }
+}
@@ -4,7 +4,7 @@ import org.darwinathome.Constants;
 import org.darwinathome.body.Being;
 import org.darwinathome.body.Target;
 import org.darwinathome.geometry.math.Arrow;
-import org.darwinathome.geometry.structure.Physics;
+import org.darwinathome.geometry.structure.Fabric;
 import org.darwinathome.universe.SphericalPhysics;
 import org.darwinathome.universe.SurfacePatch;
 import org.darwinathome.universe.World;
@@ -243,6 +243,20 @@ public class Core {
         }
     }
 
+    /**
+     * The being has lived on as a copy of itself, which now takes its place in the world.  It is still
+     * the same being, so nobody is told that the being was set.
+     *
+     * @param being the copy, with the same name as the one it replaces
+     */
+
+    public void replaceBeing(Being being) {
+        world().add(being);
+        if (hasBeing() && this.being.toString().equals(being.toString())) {
+            this.being = being;
+        }
+    }
+
     public void progressEvolution(long evolutionLifespan, double averageSpeed, double topSpeed) {
         for (EvolutionListener evolutionListener : evolutionListeners) {
             evolutionListener.evolutionProgress(evolutionStartTime, evolutionStartAge, evolutionLifespan, averageSpeed, topSpeed);
@@ -263,10 +277,14 @@ public class Core {
         return world().getSphericalPhysics();
     }
 
-    public Physics getPhysics() {
+    public Fabric.PhysicsTransformation getPhysics() {
         return world().getPhysics();
     }
 
+    public Fabric.PhysicsTransformation createPhysics() {
+        return world().createPhysics();
+    }
+
     public List<SurfacePatch> getSurfacePatches() {
         return world().getSurfacePatches();
     }
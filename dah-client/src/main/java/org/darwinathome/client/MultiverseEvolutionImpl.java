@@ -12,33 +12,89 @@ import org.darwinathome.body.Being;
 import org.darwinathome.body.Direction;
 import org.darwinathome.body.Target;
 import org.darwinathome.genetics.Genome;
+import org.darwinathome.genetics.Noise;
+import org.darwinathome.genetics.impl.PseudoNoise;
 import org.darwinathome.geometry.math.Arrow;
 import org.darwinathome.geometry.structure.Fablob;
 import org.darwinathome.geometry.structure.Fabric;
 import org.darwinathome.universe.MultiverseEvolution;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The universe on the client side
+ * <p/>
+ * The competitors can be spread over a number of threads, each with its own physics.  Every competitor
+ * has genes growing from noise of its own, drawn in order from the noise of the evolution, so with the
+ * same noise the outcome is the same no matter how many threads there are.
+ * <p/>
+ * Competitors which are obviously hopeless can be stopped before they have lived their whole lifespan.
+ * Competitors of the same age are compared at checkpoints at an eighth, a quarter and half of the lifespan,
+ * and each time the worst part of them stops, so only the promising ones use up the whole lifespan.  The
+ * stopped ones are still ranked by how far they got, so they are the first to be culled.
+ * <p/>
+ * How far a competitor gets depends only on the frozen ancestor and its movement genes, so what was found
+ * for one set of movement genes is remembered for a while.  A mutant which turns out to be the same as
+ * one that already lived out the same lifespan is given its result instead of living it all again.  Only
+ * competitors whose genes didn't grow while they lived are remembered, because growing takes noise.
+ * <p/>
+ * When the lifespan starts again the ancestor moves on, but what it becomes only depends on how it was
+ * frozen, so with more than one thread a copy of it is already living out that time in the background
+ * while the competitors are busy.  At the end of the generation the copy just takes its place, in the
+ * evolution and in the world.  The copy keeps the water it drinks aside until then, since the competitors
+ * feel the water under their feet.
  *
  * @author Gerald de Jong, Beautiful Code BV, <geralddejong@gmail.com>
  */
 
 public class MultiverseEvolutionImpl implements MultiverseEvolution {
+    private static final int BLOCK_SIZE = 8;
+    private static final int CHECKPOINTS = 3;
+    private static final int FITNESS_CACHE_SIZE = 1024;
     private Logger log = Logger.getLogger(getClass());
     private Core core;
+    private Noise noise;
     private long lifespan = Constants.MIN_LIFESPAN;
     private Being ancestor;
     private Fablob ancestorBlob;
     private long ageFrozen;
+    private Fabric.PhysicsTransformation ancestorPhysics;
+    private ExecutorService ancestorWorker;
+    private Future<Being> successor;
     private List<CompetitorImpl> competitors = new ArrayList<CompetitorImpl>();
+    private List<CompetitorImpl> running = new ArrayList<CompetitorImpl>();
+    private boolean[] failed = new boolean[0];
+    private Evaluator evaluator = new Evaluator(null);
+    private ExecutorService workers;
+    private List<Evaluator> workerEvaluators = new ArrayList<Evaluator>();
+    private AtomicInteger nextBlock = new AtomicInteger();
+    private int blockSize;
+    private double earlyCulling;
+    private List<CompetitorImpl> arrivals = new ArrayList<CompetitorImpl>();
+    private long iterationsSaved, iterationsSpent, spending;
+    private int iterations;
+    private int rememberedCount;
+    private Map<FitnessKey, Fitness> fitnessCache = new LinkedHashMap<FitnessKey, Fitness>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<FitnessKey, Fitness> eldest) {
+            return size() > FITNESS_CACHE_SIZE;
+        }
+    };
     private boolean terminated;
     private Arrow bodyCenter;
     private Arrow toGoal;
@@ -46,6 +102,11 @@ public class MultiverseEvolutionImpl implements MultiverseEvolution {
     private Target target;
 
     public MultiverseEvolutionImpl(Being ancestor, Core core) {
+        this(ancestor, core, new PseudoNoise());
+    }
+
+    public MultiverseEvolutionImpl(Being ancestor, Core core, Noise noise) {
+        this.noise = noise;
         this.toGoal = new Arrow().sub(ancestor.getGoal(), ancestor.getGeometry().getBodyCenter());
         this.distanceToGoal = toGoal.normalize();
         this.bodyCenter = ancestor.getGeometry().getBodyCenter();
@@ -53,30 +114,59 @@ public class MultiverseEvolutionImpl implements MultiverseEvolution {
         this.ancestor = ancestor;
         this.core = core;
         this.core.progressEvolution(Constants.MIN_LIFESPAN, 0, 0);
+        this.ancestorPhysics = core.createPhysics();
+        this.ancestorPhysics.setIterations(Math.max(1, core.getPhysics().getIterations())); // as it lived in the world
         freezeAncestor();
     }
 
     public boolean experienceTime(int iterations) {
+        this.iterations = iterations;
         if (competitors.isEmpty()) {
-            CompetitorImpl competitor = new CompetitorImpl((Being) ancestorBlob.createFabric(ancestor.getBody().getThingFactory()).getThing());
-            competitors.add(competitor);
+            Being being = createAncestorClone(); // virtual, so it doesn't drink the water of the others
+            being.setGenome(being.getGenome().copy(new PseudoNoise(noise)));
+            competitors.add(new CompetitorImpl(being));
             createCompetitors(Constants.BIRTH_WAVE_SIZE);
         }
-        core.getPhysics().setIterations(iterations);
-        boolean finished = true;
-        Iterator<CompetitorImpl> iterator = competitors.iterator();
-        while (iterator.hasNext()) {
-            CompetitorImpl competitor = iterator.next();
+        running.clear();
+        for (CompetitorImpl competitor : competitors) {
             if (!competitor.isFinished()) {
-                try {
-                    competitor.experienceTime();
-                    finished = false;
-                }
-                catch (Exception e) {
-                    iterator.remove();
+                running.add(competitor);
+            }
+        }
+        if (failed.length < running.size()) {
+            failed = new boolean[running.size() * 2];
+        }
+        else {
+            Arrays.fill(failed, false);
+        }
+        for (CompetitorImpl competitor : running) {
+            competitor.startAge = competitor.getAge();
+        }
+        if (workers == null) {
+            evaluator.physics = core.getPhysics();
+            evaluator.physics.setIterations(iterations);
+            evaluator.evaluate(0, running.size());
+        }
+        else {
+            evaluateInParallel(iterations);
+        }
+        boolean finished = true;
+        for (int walk = 0; walk < running.size(); walk++) {
+            if (failed[walk]) {
+                competitors.remove(running.get(walk));
+            }
+            else {
+                CompetitorImpl competitor = running.get(walk);
+                finished = false;
+                spending += competitor.getAge() - competitor.startAge;
+                if (competitor.isFinished()) {
+                    competitor.remember();
                 }
             }
         }
+        if (earlyCulling > 0) {
+            stopHopeless();
+        }
         if (finished && competitors.size() < Constants.POPULATION_SIZE) {
             createCompetitors(Constants.BIRTH_WAVE_SIZE);
             finished = false;
@@ -87,14 +177,114 @@ public class MultiverseEvolutionImpl implements MultiverseEvolution {
     public Genome terminate() {
         core.terminateEvolution();
         terminated = true;
+        if (successor != null) {
+            successor.cancel(true);
+            successor = null;
+        }
+        setParallelism(1);
         return getBestGenome();
     }
 
+    /**
+     * Spread the competitors over a number of threads, each with its own physics.  The competitors are
+     * virtual and only touch what is their own, so they can live their lives alongside each other, and
+     * they are all finished before anything is done with the results.  One more thread moves the ancestor
+     * on ahead of time.
+     *
+     * @param threads how many, and one means do it all in the calling thread
+     */
+
+    public void setParallelism(int threads) {
+        if (workers != null) {
+            workers.shutdown();
+            workers = null;
+            workerEvaluators.clear();
+            ancestorWorker.shutdown(); // an advance under way still finishes for whoever waits for it
+            ancestorWorker = null;
+        }
+        if (threads > 1) {
+            ThreadFactory threadFactory = new ThreadFactory() {
+                private int count;
+
+                public synchronized Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Evolution-" + (++count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+            workers = Executors.newFixedThreadPool(threads, threadFactory);
+            for (int walk = 0; walk < threads; walk++) {
+                workerEvaluators.add(new Evaluator(core.createPhysics()));
+            }
+            ancestorWorker = Executors.newSingleThreadExecutor(threadFactory);
+            if (successor == null && !terminated) {
+                successor = ancestorWorker.submit(new AncestorAdvance(createSuccessor()));
+            }
+        }
+    }
+
+    public int getParallelism() {
+        return workers == null ? 1 : workerEvaluators.size();
+    }
+
+    /**
+     * Stop the competitors which are falling behind before they have lived their whole lifespan
+     *
+     * @param aggressiveness the part of the competitors of the same age stopped at each checkpoint, zero to let them all live
+     */
+
+    public void setEarlyCulling(double aggressiveness) {
+        if (aggressiveness < 0 || aggressiveness >= 1) {
+            throw new RuntimeException("Early culling of " + aggressiveness + " is not between 0 and 1");
+        }
+        this.earlyCulling = aggressiveness;
+    }
+
+    public double getEarlyCulling() {
+        return earlyCulling;
+    }
+
+    /**
+     * How many iterations were saved by stopping competitors early or remembering them in the generation
+     * ended by the last cull
+     *
+     * @return the iterations which those competitors would have still lived
+     */
+
+    public long getIterationsSaved() {
+        return iterationsSaved;
+    }
+
+    /**
+     * How many iterations the competitors lived through together in the generation ended by the last cull
+     *
+     * @return the iterations of all competitors added up
+     */
+
+    public long getIterationsSpent() {
+        return iterationsSpent;
+    }
+
     public Collection<? extends Competitor> getCompetitors() {
         return competitors;
     }
 
     public Competitor cull() {
+        int stoppedCount = 0;
+        iterationsSaved = 0;
+        iterationsSpent = spending;
+        spending = 0;
+        for (CompetitorImpl competitor : competitors) {
+            if (competitor.stopped || competitor.remembered) {
+                stoppedCount++;
+                iterationsSaved += lifespan - competitor.getAge();
+            }
+        }
+        log.info(String.format(
+                "Stopped %d of %d competitors early and remembered %d, saving %d iterations and spending %d",
+                stoppedCount - rememberedCount, competitors.size(), rememberedCount, iterationsSaved, iterationsSpent
+        ));
+        rememberedCount = 0;
         rankOnProximity();
         CompetitorImpl bestCompetitor = competitors.get(competitors.size() - 1);
         while (competitors.size() > Constants.POPULATION_SIZE - Constants.BIRTH_WAVE_SIZE) {
@@ -147,7 +337,7 @@ public class MultiverseEvolutionImpl implements MultiverseEvolution {
         double averageSpeed = 0;
         int competitorCount = 0;
         for (CompetitorImpl competitor : competitors) {
-            if (competitor.isFinished()) {
+            if (competitor.isFinished() && !competitor.stopped) {
                 competitorCount++;
                 double speed = competitor.getSpeed();
                 averageSpeed += speed;
@@ -165,6 +355,11 @@ public class MultiverseEvolutionImpl implements MultiverseEvolution {
         else if (lifespan > Constants.MAX_LIFESPAN) {
             lifespan = Constants.MAX_LIFESPAN;
         }
+        for (CompetitorImpl competitor : competitors) {
+            competitor.stopped = false;
+            competitor.remembered = false;
+            competitor.checkpoint = CHECKPOINTS; // those still here have been through the checkpoints
+        }
         if (lifespan < this.lifespan || lifespan == Constants.MIN_LIFESPAN) {
             advanceAncestor();
             freezeAncestor();
@@ -172,22 +367,49 @@ public class MultiverseEvolutionImpl implements MultiverseEvolution {
                 competitor.reboot();
             }
             core.startEvolution();
+            if (ancestorWorker != null) {
+                successor = ancestorWorker.submit(new AncestorAdvance(createSuccessor()));
+            }
         }
         this.lifespan = lifespan;
+        for (CompetitorImpl competitor : competitors) {
+            if (competitor.getAge() == 0) { // it would have to start from the beginning
+                competitor.recall();
+            }
+        }
         core.progressEvolution(lifespan, averageSpeed, topSpeed);
     }
 
     private void advanceAncestor() {
-        long startAge = ancestor.getBody().getAge();
-        while (ancestor.getBody().getAge() < startAge + Constants.LIFESPAN_ADVANCE) {
-            ancestor.getBody().executeTransformations(core.getPhysics());
-            ancestor.getGeometry().refresh();
-            ancestor.experienceTime(core.getPhysics());
+        if (successor == null) {
+            ancestor = new AncestorAdvance(createSuccessor()).call();
+        }
+        else {
+            try {
+                ancestor = successor.get();
+            }
+            catch (InterruptedException e) {
+                throw new RuntimeException("Interrupted while waiting for the ancestor", e);
+            }
+            catch (ExecutionException e) {
+                throw new RuntimeException("Unable to advance the ancestor", e.getCause());
+            }
+            finally {
+                successor = null;
+            }
         }
+        ancestor.pourOutDrunkWater();
+        core.replaceBeing(ancestor); // the being in the world moves on with it
         bodyCenter = ancestor.getGeometry().getBodyCenter();
         target = new Target(ancestor.getGoal());
     }
 
+    private Being createSuccessor() {
+        Being being = (Being) ancestorBlob.createFabric(ancestor.getBody().getThingFactory()).getThing();
+        being.drinkAside(); // the competitors must see the water as it was
+        return being;
+    }
+
     private void freezeAncestor() {
         this.ancestorBlob = new Fablob(ancestor.getBody());
         this.ageFrozen = ancestor.getBody().getAge();
@@ -195,6 +417,7 @@ public class MultiverseEvolutionImpl implements MultiverseEvolution {
 
     private Being createAncestorClone() {
         Fabric cloneFabric = ancestorBlob.createFabric(ancestor.getBody().getThingFactory());
+        cloneFabric.wake(); // a sleeping ancestor must not give competitors that never move
         Being being = (Being) cloneFabric.getThing();
         being.setVirtual(true);
         return being;
@@ -202,12 +425,56 @@ public class MultiverseEvolutionImpl implements MultiverseEvolution {
 
     private void createCompetitors(int count) {
         while (count-- > 0) {
-            int parent = (int) (Math.random() * competitors.size());
+            int parent = noise.choose(competitors.size());
             CompetitorImpl mutatedClone = competitors.get(parent).createMutatedClone(Constants.CHANCE_OF_MUTATION);
+            mutatedClone.recall();
             competitors.add(mutatedClone);
         }
     }
 
+    /**
+     * Compare the competitors arriving at a checkpoint together and stop the worst of them
+     */
+
+    private void stopHopeless() {
+        for (int checkpoint = 0; checkpoint < CHECKPOINTS; checkpoint++) {
+            long age = lifespan >> (CHECKPOINTS - checkpoint);
+            arrivals.clear();
+            for (CompetitorImpl competitor : competitors) {
+                if (!competitor.isFinished() && competitor.checkpoint == checkpoint && competitor.getAge() >= age) {
+                    competitor.checkpoint++;
+                    competitor.calculateTripToGoal();
+                    arrivals.add(competitor);
+                }
+            }
+            Collections.sort(arrivals);
+            int stopCount = (int) (arrivals.size() * earlyCulling);
+            for (int walk = 0; walk < stopCount; walk++) {
+                arrivals.get(walk).stopped = true;
+            }
+        }
+    }
+
+    private void evaluateInParallel(int iterations) {
+        for (Evaluator workerEvaluator : workerEvaluators) {
+            workerEvaluator.physics.setIterations(iterations);
+        }
+        int threads = workerEvaluators.size();
+        blockSize = Math.max(1, Math.min(BLOCK_SIZE, (running.size() + threads - 1) / threads)); // keep every thread busy
+        nextBlock.set(0);
+        try {
+            for (Future<Object> future : workers.invokeAll(workerEvaluators)) {
+                future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while waiting for competitors", e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException("Unable to evaluate competitors", e.getCause());
+        }
+    }
+
     private void rankOnProximity() {
         for (CompetitorImpl competitor : competitors) {
             competitor.calculateTripToGoal();
@@ -221,9 +488,15 @@ public class MultiverseEvolutionImpl implements MultiverseEvolution {
         private Being being;
         private double travelToGoal;
         private double speed;
+        private long startAge;
+        private int checkpoint;
+        private boolean stopped;
+        private byte[] movementGenes;
+        private boolean remembered;
 
         public CompetitorImpl(Being being) {
             this.being = being;
+            this.movementGenes = being.getGenome().toBytes(Direction.GENE_PREFIX);
             this.being.getGeometry().refresh();
             this.activeDirections.add(being.getGeometry().getDirection());
         }
@@ -240,17 +513,19 @@ public class MultiverseEvolutionImpl implements MultiverseEvolution {
 
         public void reboot() {
             being = createClone();
+            movementGenes = being.getGenome().toBytes(Direction.GENE_PREFIX);
+            checkpoint = 0;
         }
 
         public boolean isFinished() {
-            return getAge() > lifespan;
+            return stopped || remembered || getAge() > lifespan;
         }
 
-        public void experienceTime() {
-            being.getBody().executeTransformations(core.getPhysics());
+        public void experienceTime(Fabric.PhysicsTransformation physics) {
+            being.getBody().executeTransformations(physics);
             being.getGeometry().refresh();
             activeDirections.add(being.getGeometry().getDirection());
-            being.experienceTime(core.getPhysics());
+            being.experienceTime(physics);
             being.setTarget(target);
         }
 
@@ -274,6 +549,9 @@ public class MultiverseEvolutionImpl implements MultiverseEvolution {
         }
 
         public void calculateTripToGoal() {
+            if (remembered) {
+                return;
+            }
             long age = getAge();
             if (age > 0) {
                 speed = bodyCenter.distanceTo(being.getGeometry().getBodyCenter()) * Constants.ITERATIONS_PER_HOUR / age;
@@ -302,13 +580,135 @@ public class MultiverseEvolutionImpl implements MultiverseEvolution {
             return speed;
         }
 
+        /**
+         * Take the result of an earlier competitor with the same movement genes, if there is one
+         */
+
+        private void recall() {
+            Fitness fitness = fitnessCache.get(new FitnessKey(movementGenes, ageFrozen, lifespan, iterations));
+            if (fitness != null) {
+                travelToGoal = fitness.travelToGoal;
+                speed = fitness.speed;
+                remembered = true;
+                rememberedCount++;
+            }
+        }
+
+        /**
+         * Keep the result of having just lived out the whole lifespan, as long as the genes didn't grow along the way
+         */
+
+        private void remember() {
+            if (stopped) {
+                return;
+            }
+            calculateTripToGoal();
+            if (Arrays.equals(movementGenes, being.getGenome().toBytes(Direction.GENE_PREFIX))) {
+                fitnessCache.put(new FitnessKey(movementGenes, ageFrozen, lifespan, iterations), new Fitness(travelToGoal, speed));
+            }
+        }
+
         private Being createClone() {
             Being cloneBeing = createAncestorClone();
-            cloneBeing.setGenome(being.getGenome().copy());
+            cloneBeing.setGenome(being.getGenome().copy(new PseudoNoise(noise)));
             return cloneBeing;
         }
 
     }
 
+    private static class FitnessKey {
+        private byte[] movementGenes;
+        private long ageFrozen;
+        private long lifespan;
+        private int iterations;
+        private int hash;
+
+        private FitnessKey(byte[] movementGenes, long ageFrozen, long lifespan, int iterations) {
+            this.movementGenes = movementGenes;
+            this.ageFrozen = ageFrozen;
+            this.lifespan = lifespan;
+            this.iterations = iterations;
+            this.hash = ((Arrays.hashCode(movementGenes) * 31 + (int) (ageFrozen ^ (ageFrozen >>> 32))) * 31 + (int) lifespan) * 31 + iterations;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof FitnessKey)) {
+                return false;
+            }
+            FitnessKey key = (FitnessKey) object;
+            return hash == key.hash && ageFrozen == key.ageFrozen && lifespan == key.lifespan && iterations == key.iterations && Arrays.equals(movementGenes, key.movementGenes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static class Fitness {
+        private double travelToGoal;
+        private double speed;
+
+        private Fitness(double travelToGoal, double speed) {
+            this.travelToGoal = travelToGoal;
+            this.speed = speed;
+        }
+    }
+
+    /**
+     * Lets a copy of the frozen ancestor live on for a while, on its own, to become the next ancestor
+     */
+
+    private class AncestorAdvance implements Callable<Being> {
+        private Being being;
+
+        private AncestorAdvance(Being being) {
+            this.being = being;
+        }
+
+        public Being call() {
+            long startAge = being.getBody().getAge();
+            while (being.getBody().getAge() < startAge + Constants.LIFESPAN_ADVANCE && !Thread.currentThread().isInterrupted()) {
+                being.getBody().executeTransformations(ancestorPhysics);
+                being.getGeometry().refresh();
+                being.experienceTime(ancestorPhysics);
+            }
+            return being;
+        }
+    }
+
+    /**
+     * Takes blocks of the running competitors and lets them experience time, with a physics of its own,
+     * noting which ones failed.
+     */
+
+    private class Evaluator implements Callable<Object> {
+        private Fabric.PhysicsTransformation physics;
+
+        private Evaluator(Fabric.PhysicsTransformation physics) {
+            this.physics = physics;
+        }
+
+        public Object call() throws Exception {
+            int from;
+            while ((from = nextBlock.getAndAdd(blockSize)) < running.size()) {
+                evaluate(from, Math.min(from + blockSize, running.size()));
+            }
+            return null;
+        }
+
+        private void evaluate(int from, int to) {
+            for (int walk = from; walk < to; walk++) {
+                try {
+                    running.get(walk).experienceTime(physics);
+                }
+                catch (Exception e) {
+                    failed[walk] = true;
+                }
+            }
+        }
+    }
+
 
 }
\ No newline at end of file
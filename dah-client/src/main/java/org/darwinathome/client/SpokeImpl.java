@@ -235,6 +235,7 @@ public class SpokeImpl implements Spoke {
         if (being != null) {
             if (evolution == null) {
                 evolution = new MultiverseEvolutionImpl(being, core);
+                evolution.setParallelism(Runtime.getRuntime().availableProcessors());
                 core.startEvolution();
             }
         }
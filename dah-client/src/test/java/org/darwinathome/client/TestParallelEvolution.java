@@ -0,0 +1,102 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+package org.darwinathome.client;
+
+import org.darwinathome.Constants;
+import org.darwinathome.body.Being;
+import org.darwinathome.body.Embryo;
+import org.darwinathome.body.Speech;
+import org.darwinathome.genetics.Genome;
+import org.darwinathome.genetics.Noise;
+import org.darwinathome.genetics.impl.PseudoNoise;
+import org.darwinathome.geometry.math.Arrow;
+import org.darwinathome.universe.MultiverseEvolution;
+import org.darwinathome.universe.World;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Make sure that an evolution comes out the same no matter how many threads it is spread over
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class TestParallelEvolution {
+    private static final byte[] SEED_BYTES = {2, 7, 1, 8, 2, 8, 1, 8, 2, 8, 4, 5, 9, 0, 4, 5};
+    private static final int MAX_GROWING_TICKS = 20000;
+    private static final int ITERATIONS = 30;
+    private static final int TICKS = 300;
+
+    @Test
+    public void sameForAnyThreadCount() throws IOException {
+        List<byte[]> alone = evolve(1);
+        List<byte[]> together = evolve(3);
+        Assert.assertEquals("competitors", alone.size(), together.size());
+        for (int walk = 0; walk < alone.size(); walk++) {
+            Assert.assertTrue("competitor " + walk, Arrays.equals(alone.get(walk), together.get(walk)));
+        }
+    }
+
+    private static List<byte[]> evolve(int threads) throws IOException {
+        World world = new EvolutionWorld(new PseudoNoise(new PseudoNoise.ClonableSeed(SEED_BYTES, 0)));
+        world.setPackedPhysics(true);
+        Arrow location = new Arrow(1, 2, 3).setSpan(Constants.ROAM_RADIUS);
+        Arrow gaze = new Arrow(0, 0, 1);
+        gaze.sub(location, location.dot(gaze) / location.quadrance()).normalize();
+        Embryo embryo = new Embryo("EVO", "Evolution", new Speech("Evolution"), new Genome(world.getNoise()), null);
+        Being ancestor = world.createBeing(embryo, location, gaze);
+        for (int walk = 0; walk < MAX_GROWING_TICKS && ancestor.getPhase() != Being.Phase.ADULT_LIFE; walk++) {
+            world.experienceTime(1);
+        }
+        Assert.assertEquals("phase", Being.Phase.ADULT_LIFE, ancestor.getPhase());
+        Core core = new Core();
+        core.setWorld(world); // a world of its own, since the ancestor drinks its water as it moves on
+        core.setBeing(ancestor);
+        MultiverseEvolutionImpl evolution = new MultiverseEvolutionImpl(ancestor, core, new PseudoNoise(new PseudoNoise.ClonableSeed(SEED_BYTES, 1)));
+        evolution.setParallelism(threads);
+        for (int walk = 0; walk < TICKS; walk++) {
+            if (!evolution.experienceTime(ITERATIONS)) {
+                evolution.cull();
+                evolution.advanceLifespan();
+            }
+            if (walk == TICKS / 2) {
+                evolution.resetLifespan(); // the ancestor moves on
+                Being movedOn = core.getBeing();
+                Assert.assertSame("the world's being", movedOn, world.getBeing(ancestor.toString()));
+                Assert.assertTrue("moved on", movedOn.getBody().getAge() >= ancestor.getBody().getAge() + Constants.LIFESPAN_ADVANCE);
+            }
+        }
+        evolution.setParallelism(1);
+        List<byte[]> competitors = new ArrayList<byte[]>();
+        competitors.add(core.getBeing().getGeometry().getBodyCenter().toString().getBytes());
+        for (MultiverseEvolution.Competitor competitor : evolution.getCompetitors()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(out);
+            competitor.getBeing().getGenome().write(dos);
+            Arrow bodyCenter = competitor.getBeing().getGeometry().getBodyCenter();
+            dos.writeDouble(bodyCenter.x);
+            dos.writeDouble(bodyCenter.y);
+            dos.writeDouble(bodyCenter.z);
+            dos.writeLong(competitor.getBeing().getBody().getAge());
+            competitors.add(out.toByteArray());
+        }
+        return competitors;
+    }
+
+    private static class EvolutionWorld extends World {
+        private EvolutionWorld(Noise noise) {
+            super(noise);
+        }
+    }
+}
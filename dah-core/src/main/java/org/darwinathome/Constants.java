@@ -15,6 +15,7 @@ public interface Constants {
 
     // fundamental dimensions
     int FREQUENCY = 20;
+    int MAX_FREQUENCY = 57; // patch indexes are saved as unsigned shorts
     double SURFACE_RADIUS = 800;
     double ORBIT_ALTITUDE = 2000;
     double ROAM_ALTITUDE = 2;
@@ -54,6 +55,9 @@ public interface Constants {
     double WATCH_APPROACH_FACTOR = -2.5;
     double ADJUST_UPWARDS = 0.03;
     double GRAVITY_FACTOR = 0.001;
+    double QUIESCENT_SPEED = 1e-7;
+    int QUIESCENT_TICKS = 300;
+    float QUIESCENT_WATER_CHANGE = 0.05f;
 
     // timings
     int MUSCLE_DURATION = 1600;
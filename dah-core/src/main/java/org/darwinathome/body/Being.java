@@ -17,7 +17,6 @@ import org.darwinathome.geometry.structure.Fabric;
 import org.darwinathome.geometry.structure.Face;
 import org.darwinathome.geometry.structure.Interval;
 import org.darwinathome.geometry.structure.Joint;
-import org.darwinathome.geometry.structure.Physics;
 import org.darwinathome.geometry.structure.TensegritySphereFactory;
 import org.darwinathome.geometry.structure.Thing;
 import org.darwinathome.geometry.transform.JointMerge;
@@ -28,8 +27,10 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * The thing stored in a fabric which holds the blind watchmaker being state
@@ -47,6 +48,10 @@ public class Being implements SurfacePatch.Holder, Thing {
     // transient stuff
     private SurfacePatch surfacePatch; // transient
     private boolean drinking;
+    private Map<SurfacePatch, float[]> drunk; // transient, water drunk but not yet poured out of the patches
+    private float sleepWaterLevel = -1; // saved only while the body is asleep
+    private List<Interval> muscles = new ArrayList<Interval>(); // transient
+    private BitSet steps = new BitSet(); // transient
 
     // stored stuff
     private Fabric body;
@@ -83,6 +88,8 @@ public class Being implements SurfacePatch.Holder, Thing {
         Being getBeing(String bodyName);
 
         SurfacePatch getNearestPatch(Arrow location);
+
+        void beingMoved(Being being);
     }
 
     private Being(Fabric body, Outside outside) {
@@ -94,6 +101,28 @@ public class Being implements SurfacePatch.Holder, Thing {
         this.virtual = virtual;
     }
 
+    /**
+     * Drink water without taking it out of the surface patches yet, so that this being can live alongside
+     * others who need to see the water as it was.
+     */
+
+    public void drinkAside() {
+        this.drunk = new LinkedHashMap<SurfacePatch, float[]>();
+    }
+
+    /**
+     * Take the water drunk since drinkAside() out of the surface patches, and from now on drink normally
+     */
+
+    public void pourOutDrunkWater() {
+        if (drunk != null) {
+            for (Map.Entry<SurfacePatch, float[]> entry : drunk.entrySet()) {
+                entry.getKey().pourOut(entry.getValue());
+            }
+            drunk = null;
+        }
+    }
+
     public Geometry getGeometry() {
         return geometry;
     }
@@ -221,6 +250,26 @@ public class Being implements SurfacePatch.Holder, Thing {
     public void setTarget(Target target) {
         goal.set(target.getLocation());
         preyName = target.getPreyName();
+        body.wake();
+    }
+
+    /**
+     * A sleeping body is woken when this being is hunting or when the water under it has changed
+     * noticeably since it fell asleep.
+     */
+
+    public void checkSleep() {
+        if (!body.isAsleep()) {
+            sleepWaterLevel = -1;
+            return;
+        }
+        float waterLevel = surfacePatch == null ? 0 : surfacePatch.getWaterLevel();
+        if (sleepWaterLevel < 0) {
+            sleepWaterLevel = waterLevel;
+        }
+        else if (!preyName.isEmpty() || Math.abs(waterLevel - sleepWaterLevel) > Constants.QUIESCENT_WATER_CHANGE) {
+            body.wake();
+        }
     }
 
     public void handleHanging() {
@@ -256,7 +305,19 @@ public class Being implements SurfacePatch.Holder, Thing {
         return phase;
     }
 
-    public void experienceTime(Physics physics) {
+    public void experienceTime(Fabric.PhysicsTransformation physics) {
+        experienceLife(physics);
+        experiencePhysics(physics);
+    }
+
+    /**
+     * The part of a tick which makes decisions, drinks water and uses the genome.  This touches things
+     * that are shared with other beings so it must be done in order.
+     *
+     * @param physics whose iterations tell how much time is passing
+     */
+
+    public void experienceLife(Fabric.PhysicsTransformation physics) {
         switch (phase) {
             case CONCEPTION:
                 phase = Phase.TRUNK_GROWTH;
@@ -292,7 +353,7 @@ public class Being implements SurfacePatch.Holder, Thing {
                         shield.addTransformation(new Fabric.Transformation() {
                             @Override
                             public void transform(Fabric fabric) {
-                                for (Interval interval : fabric.getIntervals()) {
+                                for (Interval interval : fabric.readIntervals()) {
                                     if (interval.getRole() == Interval.Role.CABLE) {
                                         interval.getSpan().setIdeal(interval.getSpan().getUltimateIdeal() * 2, 3600);
                                     }
@@ -317,7 +378,9 @@ public class Being implements SurfacePatch.Holder, Thing {
                 if (!body.isAnySpanActive()) {
                     drinking = false;
                     if (!virtual && energy.getAmount() < 1) {
-                        for (Joint joint : body.getJoints()) {
+                        List<Joint> joints = body.readJoints();
+                        for (int walk = 0; walk < joints.size(); walk++) {
+                            Joint joint = joints.get(walk);
                             JointSurface jointSurface = (JointSurface) joint.getThing();
                             if (jointSurface != null && joint.getLocation().span() < Constants.SURFACE_RADIUS) {
                                 double energyNeeded = 1 - energy.getAmount();
@@ -327,7 +390,8 @@ public class Being implements SurfacePatch.Holder, Thing {
                                 else if (energyNeeded < 0) {
                                     energyNeeded = 0;
                                 }
-                                float consumed = jointSurface.getPatch(joint.getLocation()).consumeWater((float) energyNeeded);
+                                SurfacePatch patch = jointSurface.getPatch(joint.getLocation());
+                                float consumed = drunk != null ? patch.consumeWater((float) energyNeeded, drunk) : patch.consumeWater((float) energyNeeded);
                                 if (consumed > 0) {
                                     drinking = true;
                                 }
@@ -400,6 +464,15 @@ public class Being implements SurfacePatch.Holder, Thing {
             default:
                 throw new RuntimeException("Unhandled: " + phase);
         }
+    }
+
+    /**
+     * The part of a tick which only moves this being's own fabrics, so it can be done alongside other beings
+     *
+     * @param physics the physics to use, not shared with other threads
+     */
+
+    public void experiencePhysics(Fabric.PhysicsTransformation physics) {
         if (body != null) {
             body.executeTransformations(physics);
         }
@@ -437,24 +510,24 @@ public class Being implements SurfacePatch.Holder, Thing {
     }
 
     private void takeAStep() {
-        List<Interval> muscles = new ArrayList<Interval>();
-        for (Interval interval : body.getIntervals()) {
+        muscles.clear();
+        List<Interval> intervals = body.readIntervals();
+        for (int walk = 0; walk < intervals.size(); walk++) {
+            Interval interval = intervals.get(walk);
             if (interval.getRole() == Interval.Role.MUSCLE) {
                 muscles.add(interval);
             }
         }
         Gene gene = getMovementGene(geometry.getDirection());
         Gene.Scan scan = gene.createScan();
-        BitSet bits = scan.choices(muscles.size() * 3);
-        int walk = 0;
-        for (Interval muscle : muscles) {
-            muscle.getSpan().perturbIdeal(
+        BitSet bits = scan.choices(muscles.size() * 3, steps);
+        for (int walk = 0; walk < muscles.size(); walk++) {
+            muscles.get(walk).getSpan().perturbIdeal(
                     Constants.MUSCLE_DURATION,
                     contract(bits.get(walk * 3)),
                     contract(bits.get(walk * 3 + 1)),
                     contract(bits.get(walk * 3 + 2))
             );
-            walk++;
         }
         scan.destroy();
     }
@@ -492,6 +565,9 @@ public class Being implements SurfacePatch.Holder, Thing {
             Fablob.packArrow(point, dos);
         }
         dos.writeLong(trailAge);
+        if (body.isAsleep()) {
+            dos.writeFloat(sleepWaterLevel);
+        }
     }
 
     private void read(DataInputStream dis, Noise noise, Thing.Factory jointThingFactory) throws IOException {
@@ -519,6 +595,9 @@ public class Being implements SurfacePatch.Holder, Thing {
             trail.add(point);
         }
         trailAge = dis.readLong();
+        if (body.isAsleep()) { // the fablob has already said so
+            sleepWaterLevel = dis.readFloat();
+        }
     }
 
     public static Being create(Embryo embryo, Fabric body, Thing.Factory jointThingFactory, Outside outside) {
@@ -541,7 +620,7 @@ public class Being implements SurfacePatch.Holder, Thing {
     }
 
     Gene getMovementGene(Direction direction) {
-        return genome.getGene("move-" + direction);
+        return genome.getGene(direction.getGeneName());
     }
 
     interface FaceGrowthBud {
@@ -39,12 +39,27 @@ public class BeingFactory {
     }
 
     public Being create(String email) {
-        Speech speech = new Speech(email);
+        return create(createId(), email);
+    }
+
+    /**
+     * Create a being with an id chosen beforehand, so that the same being can be created again
+     *
+     * @param id what createId() came up with
+     * @param email whose being it is
+     * @return the new being
+     */
+
+    public Being create(String id, String email) {
+        return create(new Embryo(id, email, new Speech(email), new Genome(noise), null));
+    }
+
+    public static String createId() {
         StringBuilder id = new StringBuilder();
         for (int walk = 0; walk < 4; walk++) {
             id.append((char) ('A' + (int) (Math.random() * 26)));
         }
-        return create(new Embryo(id.toString(), email, speech, new Genome(noise), null));
+        return id.toString();
     }
 
     public Being create(Embryo embryo) {
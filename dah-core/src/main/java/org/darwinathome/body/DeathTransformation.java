@@ -31,7 +31,7 @@ public class DeathTransformation implements Fabric.Transformation {
     private Joint makeNewJoint(Interval interval, Fabric fabric, boolean alpha) {
         Joint oldJoint = interval.get(alpha);
         Joint newJoint = fabric.createJoint(fabric.who().createAnotherLike(oldJoint.getWho()), oldJoint.getLocation());
-        if (interval.replace(oldJoint, newJoint)) {
+        if (fabric.replace(interval, oldJoint, newJoint)) {
             throw new RuntimeException("No reason to be unable to replace");
         }
         fabric.getMods().getJointMod().add(newJoint);
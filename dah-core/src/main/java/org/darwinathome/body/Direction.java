@@ -27,11 +27,15 @@ public enum Direction { // Forwards/Backwards/Left/Right
     FLL,
     FFL;
 
+    public static final String GENE_PREFIX = "move-";
+    private static final Direction[] DIRECTIONS = values();
     private double forwardness;
     private double rightness;
+    private String geneName;
 
     Direction() {
         String name = toString();
+        geneName = GENE_PREFIX + name;
         int right = 0;
         int forward = 0;
         for (int walk = 0; walk < name.length(); walk++) {
@@ -65,6 +69,10 @@ public enum Direction { // Forwards/Backwards/Left/Right
         return rightness;
     }
 
+    public String getGeneName() {
+        return geneName;
+    }
+
     public double dot(double forwardness, double rightness) {
         double size = Math.sqrt(rightness * rightness + forwardness * forwardness);
         forwardness /= size;
@@ -75,7 +83,7 @@ public enum Direction { // Forwards/Backwards/Left/Right
     public static Direction getClosest(double forwardness, double rightness) {
         double bestDot = 0;
         Direction closest = null;
-        for (Direction direction : values()) {
+        for (Direction direction : DIRECTIONS) {
             double dot = direction.dot(forwardness, rightness);
             if (dot > bestDot) {
                 bestDot = dot;
@@ -74,6 +74,7 @@ public class Geometry {
     public void findBodyCenter() {
         Fabric body = being.getBody();
         body.getCenter(bodyCenter);
+        outside.beingMoved(being);
     }
 
     public void refresh() {
@@ -228,7 +229,7 @@ public class Geometry {
     }
 
     private Arrow location(int index) {
-        return joint(index).getLocation();
+        return being.getBody().readJoints().get(index).getLocation();
     }
 
     private Joint joint(int index) {
@@ -10,12 +10,12 @@ import org.darwinathome.geometry.math.Arrow;
 import org.darwinathome.geometry.structure.Fabric;
 import org.darwinathome.geometry.structure.Joint;
 import org.darwinathome.geometry.structure.Thing;
+import org.darwinathome.universe.SurfaceIndex;
 import org.darwinathome.universe.SurfacePatch;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.List;
 
 /**
  * Attached to a joint, remembers the triangle that it might collide with.
@@ -54,29 +54,29 @@ public class JointSurface implements Thing {
     }
 
     public static class Factory implements Thing.Factory {
-        private List<SurfacePatch> allSurfacePatches;
-        private Fabric fabric;
+        private SurfaceIndex surfaceIndex;
+        private ThreadLocal<Fabric> fabric = new ThreadLocal<Fabric>(); // shared by all beings
 
-        public Factory(List<SurfacePatch> allSurfacePatches) {
-            this.allSurfacePatches = allSurfacePatches;
+        public Factory(SurfaceIndex surfaceIndex) {
+            this.surfaceIndex = surfaceIndex;
         }
 
         public void setFabric(Fabric fabric) {
-            this.fabric = fabric;
+            this.fabric.set(fabric);
         }
 
         public Thing createFresh(Object target, String descriminator) {
             Joint joint = (Joint)target;
-            SurfacePatch.Holder holder = (SurfacePatch.Holder) fabric.getThing();
+            SurfacePatch.Holder holder = (SurfacePatch.Holder) fabric.get().getThing();
             SurfacePatch surfacePatch = holder.getSurfacePatch();
             if (surfacePatch == null) {
-                surfacePatch = SurfacePatch.fetchPatch(joint.getLocation(), allSurfacePatches); // SLOW!
+                surfacePatch = surfaceIndex.fetchPatch(joint.getLocation());
             }
             return new JointSurface(surfacePatch);
         }
 
         public Thing restoreExisting(DataInputStream dis, Object target) throws IOException {
-            SurfacePatch surfacePatch = allSurfacePatches.get(dis.readShort());
+            SurfacePatch surfacePatch = surfaceIndex.getSurfacePatches().get(dis.readUnsignedShort());
             return new JointSurface(surfacePatch);
         }
     }
@@ -84,6 +84,8 @@ public interface Gene {
 
         BitSet choices(int options);
 
+        BitSet choices(int options, BitSet bitSet);
+
         void destroy();
     }
 }
\ No newline at end of file
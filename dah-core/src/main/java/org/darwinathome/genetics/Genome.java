@@ -64,6 +64,30 @@ public class Genome {
         }
     }
 
+    /**
+     * Write only the genes of one category, so that they can be compared with those of another genome
+     *
+     * @param genePrefix category of genes
+     * @return the genes as bytes
+     */
+
+    public byte[] toBytes(String genePrefix) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(out);
+            for (Map.Entry<String, EndlessGene> entry : geneMap.entrySet()) {
+                if (entry.getKey().startsWith(genePrefix)) {
+                    entry.getValue().write(dos);
+                }
+            }
+            dos.close();
+            return out.toByteArray();
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Unable to write genes", e);
+        }
+    }
+
     public static Genome read(DataInputStream dis, Noise noise) throws IOException {
         Genome genome = new Genome(noise);
         int geneCount = dis.readShort();
@@ -80,6 +104,17 @@ public class Genome {
      */
 
     public Genome copy() {
+        return copy(noise);
+    }
+
+    /**
+     * Make one just like this one, but with genes that grow from other noise
+     *
+     * @param noise where new bits come from
+     * @return the new one
+     */
+
+    public Genome copy(Noise noise) {
         try {
             ByteArrayOutputStream out = new ByteArrayOutputStream();
             write(new DataOutputStream(out));
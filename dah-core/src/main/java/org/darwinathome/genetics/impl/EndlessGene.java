@@ -12,9 +12,9 @@ import org.darwinathome.genetics.Noise;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.BitSet;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.List;
 
 /**
  * This gene implementation stores its bits in a byte array, which automatically expands
@@ -29,7 +29,8 @@ public class EndlessGene implements Gene {
     private Noise noise;
     private String name;
     private byte[] bytes;
-    private Map<Integer, GeneScan> scans = new TreeMap<Integer, GeneScan>();
+    private List<GeneScan> scans = new ArrayList<GeneScan>(); // in order of number, so taking a step allocates nothing
+    private GeneScan spareScan;
 
     public static EndlessGene read(DataInputStream dis, Noise noise) throws IOException {
         EndlessGene gene = new EndlessGene(dis.readUTF(), noise);
@@ -57,19 +58,23 @@ public class EndlessGene implements Gene {
     }
 
     public GeneScan createScan() {
-        int max = 0;
-        for (Integer number : scans.keySet()) {
-            if (max < number) {
-                max = number;
-            }
-        }
+        int max = scans.isEmpty() ? 0 : scans.get(scans.size() - 1).number;
         return getScan(max + 1);
     }
 
     public GeneScan getScan(Integer number) {
-        GeneScan geneScan = scans.get(number);
+        int index = indexOf(number);
+        GeneScan geneScan = index >= 0 ? scans.get(index) : null;
         if (geneScan == null) {
-            scans.put(number, geneScan = new GeneScan(number, -1));
+            if (spareScan != null) {
+                geneScan = spareScan;
+                geneScan.number = number;
+                spareScan = null;
+            }
+            else {
+                geneScan = new GeneScan(number, -1);
+            }
+            scans.add(-index - 1, geneScan);
         }
         return geneScan;
     }
@@ -95,7 +100,7 @@ public class EndlessGene implements Gene {
     public void write(DataOutputStream dos) throws IOException {
         dos.writeUTF(name);
         dos.writeByte(scans.size());
-        for (GeneScan geneScan : scans.values()) {
+        for (GeneScan geneScan : scans) {
             dos.writeShort(geneScan.number);
             dos.writeShort(geneScan.position);
         }
@@ -118,7 +123,7 @@ public class EndlessGene implements Gene {
                 out.append(getBit(walk, stroll) ? "1" : "0");
             }
         }
-        for (GeneScan geneScan : scans.values()) {
+        for (GeneScan geneScan : scans) {
             out.append(' ').append(geneScan);
         }
         return out.toString();
@@ -126,7 +131,21 @@ public class EndlessGene implements Gene {
 
     void createScan(int number, int position) {
         GeneScan geneScan = new GeneScan(number, position);
-        scans.put(geneScan.getNumber(), geneScan);
+        int index = indexOf(number);
+        if (index >= 0) {
+            scans.set(index, geneScan);
+        }
+        else {
+            scans.add(-index - 1, geneScan);
+        }
+    }
+
+    private int indexOf(int number) {
+        int index = 0;
+        while (index < scans.size() && scans.get(index).number < number) {
+            index++;
+        }
+        return index < scans.size() && scans.get(index).number == number ? index : -index - 1;
     }
 
     public void clearScans() {
@@ -159,7 +178,11 @@ public class EndlessGene implements Gene {
         }
 
         public BitSet choices(int options) {
-            BitSet bitSet = new BitSet(options);
+            return choices(options, new BitSet(options));
+        }
+
+        public BitSet choices(int options, BitSet bitSet) {
+            bitSet.clear();
             for (int walk = 0; walk < options; walk++) {
                 if (nextBit()) {
                     bitSet.set(walk);
@@ -170,7 +193,11 @@ public class EndlessGene implements Gene {
 
         public void destroy() {
             position = -1;
-            EndlessGene.this.scans.remove(number);
+            int index = indexOf(number);
+            if (index >= 0 && scans.get(index) == this) {
+                scans.remove(index);
+                spareScan = this;
+            }
         }
 
         private int divisionsToBits(int divisions) {
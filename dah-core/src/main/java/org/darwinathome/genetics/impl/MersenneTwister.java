@@ -0,0 +1,123 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+package org.darwinathome.genetics.impl;
+
+/**
+ * The Mersenne Twister the way MersenneTwisterRNG does it, seeded from the same 16 bytes and giving the
+ * same doubles, but with its state out in the open so that it can be copied and put back in one go
+ * instead of being reached again by drawing all the numbers that came before.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+class MersenneTwister {
+    static final int SEED_SIZE = 16;
+    static final int STATE_SIZE = 624;
+    private static final int M = 397;
+    private static final int[] MAG01 = {0, 0x9908b0df};
+    private static final int UPPER_MASK = 0x80000000;
+    private static final int LOWER_MASK = 0x7fffffff;
+    private static final double DOUBLE_UNIT = 1.0 / (1L << 53);
+    private int[] mt = new int[STATE_SIZE];
+    private int index;
+
+    MersenneTwister(byte[] seed) {
+        if (seed == null || seed.length != SEED_SIZE) {
+            throw new RuntimeException("Mersenne Twister needs a seed of " + SEED_SIZE + " bytes");
+        }
+        int[] key = new int[SEED_SIZE / 4];
+        for (int walk = 0; walk < key.length; walk++) {
+            int offset = walk * 4;
+            // signed bytes added together, as MersenneTwisterRNG does, or the old seeds would give different noise
+            key[walk] = (seed[offset] << 24) + (seed[offset + 1] << 16) + (seed[offset + 2] << 8) + seed[offset + 3];
+        }
+        mt[0] = 19650218;
+        for (index = 1; index < STATE_SIZE; index++) {
+            mt[index] = 1812433253 * (mt[index - 1] ^ (mt[index - 1] >>> 30)) + index;
+        }
+        int i = 1;
+        int j = 0;
+        for (int k = Math.max(STATE_SIZE, key.length); k > 0; k--) {
+            mt[i] = (mt[i] ^ ((mt[i - 1] ^ (mt[i - 1] >>> 30)) * 1664525)) + key[j] + j;
+            i++;
+            j++;
+            if (i >= STATE_SIZE) {
+                mt[0] = mt[STATE_SIZE - 1];
+                i = 1;
+            }
+            if (j >= key.length) {
+                j = 0;
+            }
+        }
+        for (int k = STATE_SIZE - 1; k > 0; k--) {
+            mt[i] = (mt[i] ^ ((mt[i - 1] ^ (mt[i - 1] >>> 30)) * 1566083941)) - i;
+            i++;
+            if (i >= STATE_SIZE) {
+                mt[0] = mt[STATE_SIZE - 1];
+                i = 1;
+            }
+        }
+        mt[0] = UPPER_MASK;
+    }
+
+    MersenneTwister(int[] state, int index) {
+        if (state.length != STATE_SIZE || index < 0 || index > STATE_SIZE) {
+            throw new RuntimeException("Not a Mersenne Twister state");
+        }
+        System.arraycopy(state, 0, mt, 0, STATE_SIZE);
+        this.index = index;
+    }
+
+    int[] getState() {
+        int[] state = new int[STATE_SIZE];
+        System.arraycopy(mt, 0, state, 0, STATE_SIZE);
+        return state;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    double nextDouble() {
+        return (((long) next(26) << 27) + next(27)) * DOUBLE_UNIT;
+    }
+
+    void skipDoubles(int count) {
+        for (int walk = 0; walk < count; walk++) {
+            next(26);
+            next(27);
+        }
+    }
+
+    private int next(int bits) {
+        if (index >= STATE_SIZE) {
+            twist();
+        }
+        int y = mt[index++];
+        y ^= (y >>> 11);
+        y ^= (y << 7) & 0x9d2c5680;
+        y ^= (y << 15) & 0xefc60000;
+        y ^= (y >>> 18);
+        return y >>> (32 - bits);
+    }
+
+    private void twist() {
+        int y;
+        int kk;
+        for (kk = 0; kk < STATE_SIZE - M; kk++) {
+            y = (mt[kk] & UPPER_MASK) | (mt[kk + 1] & LOWER_MASK);
+            mt[kk] = mt[kk + M] ^ (y >>> 1) ^ MAG01[y & 1];
+        }
+        for (; kk < STATE_SIZE - 1; kk++) {
+            y = (mt[kk] & UPPER_MASK) | (mt[kk + 1] & LOWER_MASK);
+            mt[kk] = mt[kk + (M - STATE_SIZE)] ^ (y >>> 1) ^ MAG01[y & 1];
+        }
+        y = (mt[STATE_SIZE - 1] & UPPER_MASK) | (mt[0] & LOWER_MASK);
+        mt[STATE_SIZE - 1] = mt[M - 1] ^ (y >>> 1) ^ MAG01[y & 1];
+        index = 0;
+    }
+}
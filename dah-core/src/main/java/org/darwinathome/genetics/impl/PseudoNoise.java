@@ -7,30 +7,53 @@
 package org.darwinathome.genetics.impl;
 
 import org.darwinathome.genetics.Noise;
-import org.uncommons.maths.random.MersenneTwisterRNG;
+import org.uncommons.maths.random.DefaultSeedGenerator;
 
 /**
  * An implementation of noise that uses the Mersenne Twister pseudorandom number.
+ * <p/>
+ * The seed it hands out holds the whole state of the generator, so noise can be picked up again
+ * right where it was.  A seed with only the starting bytes and a count, like the ones saved before,
+ * still works but has to draw all of the numbers again to get there.
  *
  * @author Gerald de Jong, Beautiful Code BV, <geralddejong@gmail.com>
  */
 
 public class PseudoNoise implements Noise {
-    private MersenneTwisterRNG random;
-    private ClonableSeed seed;
+    private MersenneTwister random;
+    private byte[] bytes;
+    private int count;
 
     public PseudoNoise() {
-        this.random = new MersenneTwisterRNG();
-        this.seed = new ClonableSeed(random.getSeed(),0);
+        this.bytes = DefaultSeedGenerator.getInstance().generateSeed(MersenneTwister.SEED_SIZE);
+        this.random = new MersenneTwister(bytes);
+    }
+
+    /**
+     * Noise of its own, seeded with bytes drawn from other noise, so that the same parent always gives
+     * the same offspring and the two can be drawn from on different threads.
+     *
+     * @param parent where the seed comes from
+     */
+
+    public PseudoNoise(Noise parent) {
+        this.bytes = new byte[MersenneTwister.SEED_SIZE];
+        for (int walk = 0; walk < bytes.length; walk++) {
+            bytes[walk] = parent.nextByte();
+        }
+        this.random = new MersenneTwister(bytes);
     }
 
     public PseudoNoise(Seed seed) {
-        this.seed = (ClonableSeed)seed;
-        this.random = new MersenneTwisterRNG(this.seed.bytes);
-        int count = this.seed.count;
-        this.seed.count = 0;
-        while (this.seed.count < count) {
-            nextDouble();
+        ClonableSeed clonableSeed = (ClonableSeed) seed;
+        this.bytes = clonableSeed.bytes;
+        this.count = clonableSeed.count;
+        if (clonableSeed.state != null) {
+            this.random = new MersenneTwister(clonableSeed.state, clonableSeed.index);
+        }
+        else {
+            this.random = new MersenneTwister(bytes);
+            random.skipDoubles(count);
         }
     }
 
@@ -43,28 +66,38 @@ public class PseudoNoise implements Noise {
     }
 
     public double nextDouble() {
-        seed.count++;
+        count++;
         return random.nextDouble();
     }
 
     public Seed copySeed() {
-        return seed.copy();
+        return new ClonableSeed(bytes, count, random.getState(), random.getIndex());
     }
 
     /**
-     * Hold a seed so it can be persisted
+     * Hold a seed so it can be persisted.  The bytes and count are enough to get back to the same place,
+     * and the state, when it is there, gets there without drawing everything again.
      */
 
     public static class ClonableSeed implements Seed {
         public ClonableSeed(byte[] bytes, int count) {
+            this(bytes, count, null, 0);
+        }
+
+        public ClonableSeed(byte[] bytes, int count, int[] state, int index) {
             this.bytes = bytes;
             this.count = count;
+            this.state = state;
+            this.index = index;
         }
+
         public byte [] bytes;
         public int count;
+        public int [] state;
+        public int index;
 
         public Seed copy() {
-            return new ClonableSeed(bytes, count);
+            return new ClonableSeed(bytes, count, state, index);
         }
     }
 
@@ -0,0 +1,231 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+package org.darwinathome.universe;
+
+import org.darwinathome.body.Being;
+import org.darwinathome.geometry.math.Arrow;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keep the beings in buckets, one for each patch of a coarse level of the surface, so that finding the beings
+ * near a direction only means looking in the buckets around it.  A being is put in the bucket of the patch
+ * containing its body center or, failing that, the one with the nearest middle, so it is never further from
+ * the middle of its bucket than the corners of the patches are.  That is what allows a search to stop.
+ * <p/>
+ * Distances are measured as angles between directions, so a being's altitude makes no difference.  Beings
+ * whose body center hasn't been found yet are kept aside, and like every being seen from no direction at all
+ * they are a quarter turn away, where a walk comparing dot products would also have put them.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+class BeingIndex {
+    private static final double SLACK = 1e-9;
+    private List<SurfacePatch> surfacePatches;
+    private SurfaceIndex surfaceIndex;
+    private double[] middles;
+    private double coverage;
+    private List<List<Being>> buckets = new ArrayList<List<Being>>();
+    private Integer[] bucketNumbers;
+    private Map<Being, Integer> bucketOf = new IdentityHashMap<Being, Integer>();
+    private int[] visited;
+    private int[] queue;
+    private int visit;
+
+    BeingIndex(SurfaceLevel level, Collection<Being> beings) {
+        this.surfacePatches = level.getSurfacePatches();
+        this.surfaceIndex = level.getSurfaceIndex();
+        int count = surfacePatches.size();
+        middles = new double[count * 3];
+        double coverageDot = 1;
+        for (int walk = 0; walk < count; walk++) {
+            SurfacePatch surfacePatch = surfacePatches.get(walk);
+            Arrow middle = new Arrow(surfacePatch.getMiddle()).setSpan(1);
+            middles[walk * 3] = middle.x;
+            middles[walk * 3 + 1] = middle.y;
+            middles[walk * 3 + 2] = middle.z;
+            for (Arrow corner : surfacePatch.getCorners()) {
+                coverageDot = Math.min(coverageDot, middle.dot(new Arrow(corner).setSpan(1)));
+            }
+        }
+        coverage = Math.acos(coverageDot) + SLACK;
+        bucketNumbers = new Integer[count + 1]; // the last one is for beings without a body center
+        for (int walk = 0; walk < bucketNumbers.length; walk++) {
+            bucketNumbers[walk] = walk;
+            buckets.add(new ArrayList<Being>());
+        }
+        visited = new int[count];
+        queue = new int[count];
+        for (Being being : beings) {
+            add(being);
+        }
+    }
+
+    synchronized void add(Being being) {
+        if (bucketOf.containsKey(being)) {
+            return;
+        }
+        int bucket = findBucket(being.getGeometry().getBodyCenter(), -1);
+        buckets.get(bucket).add(being);
+        bucketOf.put(being, bucketNumbers[bucket]);
+    }
+
+    synchronized void remove(Being being) {
+        Integer bucket = bucketOf.remove(being);
+        if (bucket != null) {
+            buckets.get(bucket).remove(being);
+        }
+    }
+
+    synchronized void moved(Being being) {
+        Integer bucket = bucketOf.get(being);
+        if (bucket == null) {
+            return;
+        }
+        int found = findBucket(being.getGeometry().getBodyCenter(), bucket);
+        if (found != bucket) {
+            buckets.get(bucket).remove(being);
+            buckets.get(found).add(being);
+            bucketOf.put(being, bucketNumbers[found]);
+        }
+    }
+
+    synchronized int size() {
+        return bucketOf.size();
+    }
+
+    /**
+     * Find the beings nearest to a direction
+     *
+     * @param direction where to look
+     * @param count how many at most
+     * @param avoid a being which should not be found, or null
+     * @return the beings, nearest first
+     */
+
+    synchronized List<Being> getNearest(Arrow direction, int count, Being avoid) {
+        List<Being> found = new ArrayList<Being>();
+        if (count <= 0) {
+            return found;
+        }
+        double angle = coverage;
+        while (true) {
+            found.clear();
+            collect(direction, angle, avoid, found);
+            if (found.size() >= count || angle >= Math.PI) { // everything this close has been found
+                break;
+            }
+            angle *= 2;
+        }
+        sortByAngle(direction, found);
+        return found.size() > count ? new ArrayList<Being>(found.subList(0, count)) : found;
+    }
+
+    /**
+     * Find the beings whose body centers are within an angle of a direction
+     *
+     * @param direction where to look
+     * @param angle how far away in radians
+     * @param avoid a being which should not be found, or null
+     * @return the beings, nearest first
+     */
+
+    synchronized List<Being> getWithin(Arrow direction, double angle, Being avoid) {
+        List<Being> found = new ArrayList<Being>();
+        collect(direction, angle, avoid, found);
+        sortByAngle(direction, found);
+        return found;
+    }
+
+    private void collect(Arrow direction, double angle, Being avoid, List<Being> found) {
+        double beingDot = Math.cos(Math.min(Math.PI, angle));
+        if (beingDot <= 0) { // far enough for the beings a quarter turn away
+            collect(surfacePatches.size(), direction, beingDot, avoid, found);
+        }
+        if (angle + 2 * coverage >= Math.PI / 2 || direction.quadrance() == 0) { // the walk can't be sure, so look everywhere
+            for (int walk = 0; walk < surfacePatches.size(); walk++) {
+                collect(walk, direction, beingDot, avoid, found);
+            }
+            return;
+        }
+        double span = direction.span();
+        double x = direction.x / span, y = direction.y / span, z = direction.z / span;
+        // buckets holding beings this close have middles within bucketDot, and the patches crossed on the way
+        // from the nearest middle to any of those middles all have middles within walkDot
+        double bucketDot = Math.cos(angle + coverage);
+        double walkDot = Math.cos(angle + 2 * coverage);
+        visit++;
+        int start = surfaceIndex.fetchPatch(direction).getIndex();
+        int head = 0, tail = 0;
+        queue[tail++] = start;
+        visited[start] = visit;
+        while (head < tail) {
+            int bucket = queue[head++];
+            if (dot(bucket, x, y, z) >= bucketDot) {
+                collect(bucket, direction, beingDot, avoid, found);
+            }
+            List<SurfacePatch> adjacent = surfacePatches.get(bucket).getAdjacent();
+            for (int walk = 0; walk < adjacent.size(); walk++) {
+                int next = adjacent.get(walk).getIndex();
+                if (visited[next] != visit) {
+                    visited[next] = visit;
+                    if (dot(next, x, y, z) >= walkDot) {
+                        queue[tail++] = next;
+                    }
+                }
+            }
+        }
+    }
+
+    private void collect(int bucket, Arrow direction, double beingDot, Being avoid, List<Being> found) {
+        List<Being> beings = buckets.get(bucket);
+        for (int walk = 0; walk < beings.size(); walk++) {
+            Being being = beings.get(walk);
+            if (being != avoid && cosine(direction, being) >= beingDot) {
+                found.add(being);
+            }
+        }
+    }
+
+    private int findBucket(Arrow bodyCenter, int bucket) {
+        if (bodyCenter.quadrance() == 0) {
+            return surfacePatches.size();
+        }
+        if (bucket >= 0 && bucket < surfacePatches.size() && surfacePatches.get(bucket).contains(bodyCenter)) {
+            return bucket;
+        }
+        return surfaceIndex.fetchPatch(bodyCenter).getIndex();
+    }
+
+    private double dot(int bucket, double x, double y, double z) {
+        return middles[bucket * 3] * x + middles[bucket * 3 + 1] * y + middles[bucket * 3 + 2] * z;
+    }
+
+    private static double cosine(Arrow direction, Being being) {
+        Arrow bodyCenter = being.getGeometry().getBodyCenter();
+        if (direction.quadrance() == 0 || bodyCenter.quadrance() == 0) {
+            return 0;
+        }
+        return direction.dot(bodyCenter) / direction.span() / bodyCenter.span();
+    }
+
+    private static void sortByAngle(final Arrow direction, List<Being> beings) {
+        Collections.sort(beings, new Comparator<Being>() {
+            public int compare(Being a, Being b) {
+                int comparison = Double.compare(cosine(direction, b), cosine(direction, a));
+                return comparison != 0 ? comparison : a.toString().compareTo(b.toString());
+            }
+        });
+    }
+}
@@ -0,0 +1,109 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+package org.darwinathome.universe;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A few threads which run the same tasks over and over, once every tick.  An executor would make a future
+ * for every task and a node in its queue every time, but the crew only hands out the next task through
+ * a counter and parks in between, so running the tasks allocates nothing.
+ * <p/>
+ * Only one thread at a time may ask the crew to run tasks, and it waits until they are all done.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class Crew {
+    private Thread[] threads;
+    private AtomicInteger nextTask = new AtomicInteger();
+    private AtomicInteger busy = new AtomicInteger();
+    private volatile List<Callable<Object>> tasks;
+    private volatile Thread caller;
+    private volatile Exception failure;
+    private volatile int round;
+    private volatile boolean stopped;
+
+    public Crew(int size, String name) {
+        threads = new Thread[size];
+        for (int walk = 0; walk < size; walk++) {
+            threads[walk] = new Thread(new Member(), name + "-" + (walk + 1));
+            threads[walk].setDaemon(true);
+            threads[walk].start();
+        }
+    }
+
+    public int size() {
+        return threads.length;
+    }
+
+    /**
+     * Run all of the tasks, spread over the crew, and wait for them to be done
+     *
+     * @param tasks what to do, each of them once
+     * @throws ExecutionException when a task failed, after all the others were done
+     */
+
+    public void run(List<Callable<Object>> tasks) throws ExecutionException {
+        if (stopped) {
+            throw new IllegalStateException("The crew has been shut down");
+        }
+        this.tasks = tasks;
+        this.caller = Thread.currentThread();
+        failure = null;
+        nextTask.set(0);
+        busy.set(threads.length);
+        round++; // the volatile write that lets the crew see all of the above
+        for (Thread thread : threads) {
+            LockSupport.unpark(thread);
+        }
+        while (busy.get() > 0) {
+            LockSupport.park(this);
+        }
+        this.tasks = null;
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+    }
+
+    public void shutdown() {
+        stopped = true;
+        for (Thread thread : threads) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private class Member implements Runnable {
+        public void run() {
+            int lastRound = 0;
+            while (!stopped) {
+                if (round == lastRound) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                lastRound = round;
+                List<Callable<Object>> tasks = Crew.this.tasks;
+                int index;
+                while ((index = nextTask.getAndIncrement()) < tasks.size()) {
+                    try {
+                        tasks.get(index).call();
+                    }
+                    catch (Exception e) {
+                        failure = e;
+                    }
+                }
+                if (busy.decrementAndGet() == 0) {
+                    LockSupport.unpark(caller);
+                }
+            }
+        }
+    }
+}
@@ -12,6 +12,7 @@ import org.darwinathome.body.JointSurface;
 import org.darwinathome.geometry.math.Arrow;
 import org.darwinathome.geometry.structure.Fabric;
 import org.darwinathome.geometry.structure.Joint;
+import org.darwinathome.geometry.structure.PackedPhysics;
 import org.darwinathome.geometry.structure.Physics;
 import org.darwinathome.geometry.structure.PhysicsValue;
 
@@ -24,7 +25,7 @@ import java.util.List;
  * @author Gerald de Jong, Beautiful Code BV, <geralddejong@gmail.com>
  */
 
-public class SphericalPhysics implements Physics.Constraints {
+public class SphericalPhysics implements PackedPhysics.Constraints {
     private Arrow radial = new Arrow();
     private Arrow circumferencial = new Arrow();
     private PhysicsValue elasticFactor = new PhysicsValue("elasticFactor", 0.900000);
@@ -37,6 +38,39 @@ public class SphericalPhysics implements Physics.Constraints {
     private PhysicsValue waterDamping = new PhysicsValue("waterDamping", 0.001000);
     private PhysicsValue landFriction = new PhysicsValue("landFriction", 0.800000);
     private PhysicsValue waterFriction = new PhysicsValue("waterFriction", 0.010000);
+    private int order = -1;
+
+    public SphericalPhysics() {
+    }
+
+    /**
+     * Share the values of another, but have separate scratch arrows so that it can run in another thread
+     *
+     * @param original where the values live
+     */
+
+    public SphericalPhysics(SphericalPhysics original) {
+        this.elasticFactor = original.elasticFactor;
+        this.radius = original.radius;
+        this.airGravity = original.airGravity;
+        this.airDamping = original.airDamping;
+        this.landGravity = original.landGravity;
+        this.waterGravity = original.waterGravity;
+        this.landDamping = original.landDamping;
+        this.waterDamping = original.waterDamping;
+        this.landFriction = original.landFriction;
+        this.waterFriction = original.waterFriction;
+    }
+
+    /**
+     * Feel the water as the being in this place of the tick left it, rather than as it is now
+     *
+     * @param order the place of the being, or -1 for the water as it is
+     */
+
+    public void setOrder(int order) {
+        this.order = order;
+    }
 
     public List<PhysicsValue> getPhysicsValues() {
         List<PhysicsValue> values = new ArrayList<PhysicsValue>();
@@ -64,34 +98,39 @@ public class SphericalPhysics implements Physics.Constraints {
     }
 
     public void exertJointPhysics(Joint joint, Fabric fabric) {
-        radial.set(joint.getLocation());
-        double altitude = joint.setAltitude(radial.normalize() - Constants.SURFACE_RADIUS);
-        Arrow velocity = joint.getVelocity();
+        joint.setAltitude(exertJointPhysics(joint, fabric, joint.getLocation(), joint.getVelocity(), joint.getGravity()));
+    }
+
+    public double exertJointPhysics(Joint joint, Fabric fabric, Arrow location, Arrow velocity, Arrow gravity) {
+        radial.set(location);
+        double altitude = radial.normalize() - Constants.SURFACE_RADIUS;
         double rad = radius.get();
         if (altitude > rad) {
-            joint.getGravity().set(radial, airGravity.get() * Constants.GRAVITY_FACTOR);
+            gravity.set(radial, airGravity.get() * Constants.GRAVITY_FACTOR);
             velocity.scale(1 - airDamping.get());
         }
         else {
-            SurfacePatch surfacePatch = getSurfacePatch(joint, fabric);
-            double water = surfacePatch.getWaterLevel();
+            SurfacePatch surfacePatch = getSurfacePatch(joint, location, fabric);
+            double water = order < 0 ? surfacePatch.getWaterLevel() : surfacePatch.getWaterLevel(order);
             circumferencial.set(velocity).sub(radial, velocity.dot(radial));
             double depth = (altitude < -rad) ? 1 : (altitude - rad) / (-2 * rad);
             velocity.scale(1 - interpolate(water, landDamping, waterDamping));
             double subsurfaceGravity = interpolate(water, landGravity, waterGravity);
             double gravityValue = interpolate(depth, airGravity.get() * Constants.GRAVITY_FACTOR, -airGravity.get() * Constants.GRAVITY_FACTOR * subsurfaceGravity);
-            joint.getGravity().set(radial, gravityValue);
+            gravity.set(radial, gravityValue);
             velocity.sub(circumferencial, interpolate(water, landFriction, waterFriction) * depth);
         }
+        return altitude;
     }
 
-    private SurfacePatch getSurfacePatch(Joint joint, Fabric fabric) {
+    private SurfacePatch getSurfacePatch(Joint joint, Arrow location, Fabric fabric) {
         JointSurface jointSurface = (JointSurface) joint.getThing();
         if (jointSurface == null) {
+            joint.getLocation().set(location); // the factory looks there
             jointSurface = (JointSurface) fabric.getThingFactory().createFresh(joint, "SurfacePatch");
             joint.setThing(jointSurface);
         }
-        SurfacePatch patch = jointSurface.getPatch(joint.getLocation());
+        SurfacePatch patch = jointSurface.getPatch(location);
         if (patch == null) {
             throw new RuntimeException("No patch found!");
         }
@@ -0,0 +1,240 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+package org.darwinathome.universe;
+
+import org.darwinathome.geometry.math.Arrow;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Find the surface patch for a direction without comparing it to every patch on the sphere.  The directions
+ * are divided up like the faces of a cube, and each cell of the cube remembers the few patches whose middle
+ * could be the nearest one for a direction in that cell.  Only those are compared, in the same order and with
+ * the same arithmetic as SurfacePatch.fetchPatch, so the answer is always the same as the full scan.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class SurfaceIndex {
+    private static final double SLACK = 1e-6;
+    private List<SurfacePatch> surfacePatches;
+    private int resolution;
+    private int[] cellStarts;
+    private int[] cellPatches;
+    private SurfacePatch[][] cells;
+
+    public SurfaceIndex(List<SurfacePatch> surfacePatches) {
+        this.surfacePatches = surfacePatches;
+        this.resolution = getResolution(surfacePatches.size());
+        int count = surfacePatches.size();
+        cellStarts = new int[6 * resolution * resolution + 1];
+        cellPatches = new int[count * 4];
+        double[] middles = new double[count * 3];
+        double[] latitudes = new double[count];
+        Integer[] sorting = new Integer[count];
+        double coverageDot = 1;
+        for (int walk = 0; walk < count; walk++) {
+            SurfacePatch surfacePatch = surfacePatches.get(walk);
+            Arrow middle = new Arrow(surfacePatch.getMiddle()).setSpan(1);
+            middles[walk * 3] = middle.x;
+            middles[walk * 3 + 1] = middle.y;
+            middles[walk * 3 + 2] = middle.z;
+            latitudes[walk] = Math.asin(Math.max(-1, Math.min(1, middle.z)));
+            sorting[walk] = walk;
+            for (Arrow corner : surfacePatch.getCorners()) {
+                coverageDot = Math.min(coverageDot, middle.dot(new Arrow(corner).setSpan(1)));
+            }
+        }
+        double coverage = angle(coverageDot);
+        final double[] sortLatitudes = latitudes;
+        Arrays.sort(sorting, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(sortLatitudes[a], sortLatitudes[b]);
+            }
+        });
+        int[] byLatitude = new int[count];
+        double[] sortedLatitudes = new double[count];
+        for (int walk = 0; walk < count; walk++) {
+            byLatitude[walk] = sorting[walk];
+            sortedLatitudes[walk] = latitudes[byLatitude[walk]];
+        }
+        int[] candidates = new int[count];
+        for (int face = 0; face < 6; face++) {
+            for (int row = 0; row < resolution; row++) {
+                for (int column = 0; column < resolution; column++) {
+                    Arrow center = direction(face, column + 0.5, row + 0.5);
+                    double radiusDot = 1;
+                    for (int corner = 0; corner < 4; corner++) {
+                        Arrow cornerDirection = direction(face, column + (corner & 1), row + (corner >> 1));
+                        radiusDot = Math.min(radiusDot, center.dot(cornerDirection));
+                    }
+                    double radius = angle(radiusDot);
+                    // every direction is within coverage of some middle, so the nearest and all candidates are in this band
+                    double latitude = Math.asin(Math.max(-1, Math.min(1, center.z)));
+                    double reach = coverage + 2 * radius + SLACK;
+                    int from = lowest(sortedLatitudes, latitude - reach);
+                    int to = lowest(sortedLatitudes, latitude + reach + SLACK);
+                    double nearest = -1;
+                    for (int walk = from; walk < to; walk++) {
+                        nearest = Math.max(nearest, dot(center, middles, byLatitude[walk]));
+                    }
+                    reach = angle(nearest) + 2 * radius + SLACK;
+                    double minimumDot = reach >= Math.PI ? -2 : Math.cos(reach);
+                    int found = 0;
+                    for (int walk = from; walk < to; walk++) {
+                        int index = byLatitude[walk];
+                        if (dot(center, middles, index) >= minimumDot) {
+                            candidates[found++] = index;
+                        }
+                    }
+                    Arrays.sort(candidates, 0, found); // the same order as the full scan
+                    int cell = cell(face, column, row);
+                    int start = cellStarts[cell];
+                    if (start + found > cellPatches.length) {
+                        cellPatches = Arrays.copyOf(cellPatches, Math.max(cellPatches.length * 2, start + found));
+                    }
+                    System.arraycopy(candidates, 0, cellPatches, start, found);
+                    cellStarts[cell + 1] = start + found;
+                }
+            }
+        }
+        cellPatches = Arrays.copyOf(cellPatches, cellStarts[cellStarts.length - 1]);
+        fillCells();
+    }
+
+    SurfaceIndex(List<SurfacePatch> surfacePatches, int[] cellStarts, int[] cellPatches) {
+        this.surfacePatches = surfacePatches;
+        this.resolution = getResolution(surfacePatches.size());
+        if (cellStarts.length != 6 * resolution * resolution + 1) {
+            throw new RuntimeException("Surface index needs " + (6 * resolution * resolution) + " cells, not " + (cellStarts.length - 1));
+        }
+        this.cellStarts = cellStarts;
+        this.cellPatches = cellPatches;
+        fillCells();
+    }
+
+    int[] getCellStarts() {
+        return cellStarts;
+    }
+
+    int[] getCellPatches() {
+        return cellPatches;
+    }
+
+    public List<SurfacePatch> getSurfacePatches() {
+        return surfacePatches;
+    }
+
+    public SurfacePatch fetchPatch(Arrow arrow) {
+        SurfacePatch nearest = null;
+        double nearestDot = -1;
+        for (SurfacePatch surfacePatch : cells[cell(arrow)]) {
+            double dot = surfacePatch.getMiddle().dot(arrow)/surfacePatch.getMiddle().span()/arrow.span();
+            if (dot > nearestDot) {
+                nearest = surfacePatch;
+                nearestDot = dot;
+            }
+        }
+        if (nearest == null) {
+            throw new RuntimeException("Need surfacePatch");
+        }
+        return nearest;
+    }
+
+    private void fillCells() {
+        cells = new SurfacePatch[cellStarts.length - 1][];
+        for (int walk = 0; walk < cells.length; walk++) {
+            SurfacePatch[] cell = new SurfacePatch[cellStarts[walk + 1] - cellStarts[walk]];
+            for (int patch = 0; patch < cell.length; patch++) {
+                cell[patch] = surfacePatches.get(cellPatches[cellStarts[walk] + patch]);
+            }
+            cells[walk] = cell;
+        }
+    }
+
+    private int cell(Arrow arrow) {
+        double ax = Math.abs(arrow.x);
+        double ay = Math.abs(arrow.y);
+        double az = Math.abs(arrow.z);
+        if (ax >= ay && ax >= az) {
+            return cell(arrow.x >= 0 ? 0 : 1, arrow.y / ax, arrow.z / ax);
+        }
+        else if (ay >= az) {
+            return cell(arrow.y >= 0 ? 2 : 3, arrow.z / ay, arrow.x / ay);
+        }
+        else {
+            return cell(arrow.z >= 0 ? 4 : 5, arrow.x / az, arrow.y / az);
+        }
+    }
+
+    private int cell(int face, double u, double v) {
+        return cell(face, coordinate(u), coordinate(v));
+    }
+
+    private int cell(int face, int column, int row) {
+        return (face * resolution + row) * resolution + column;
+    }
+
+    private int coordinate(double value) {
+        int coordinate = (int) ((value + 1) / 2 * resolution);
+        if (coordinate < 0) {
+            return 0;
+        }
+        else if (coordinate >= resolution) {
+            return resolution - 1;
+        }
+        return coordinate;
+    }
+
+    private Arrow direction(int face, double column, double row) {
+        double u = column * 2 / resolution - 1;
+        double v = row * 2 / resolution - 1;
+        double sign = (face & 1) == 0 ? 1 : -1;
+        Arrow direction;
+        switch (face >> 1) {
+            case 0:
+                direction = new Arrow(sign, u, v);
+                break;
+            case 1:
+                direction = new Arrow(v, sign, u);
+                break;
+            default:
+                direction = new Arrow(u, v, sign);
+                break;
+        }
+        return direction.setSpan(1);
+    }
+
+    private static int getResolution(int count) {
+        return Math.max(1, (int) Math.ceil(Math.sqrt(count / 6.0)));
+    }
+
+    private static int lowest(double[] sorted, double value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted[middle] < value) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static double dot(Arrow direction, double[] middles, int index) {
+        return direction.x * middles[index * 3] + direction.y * middles[index * 3 + 1] + direction.z * middles[index * 3 + 2];
+    }
+
+    private static double angle(double dot) {
+        return Math.acos(Math.max(-1, Math.min(1, dot)));
+    }
+}
@@ -0,0 +1,224 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+package org.darwinathome.universe;
+
+import org.apache.log4j.Logger;
+import org.darwinathome.geometry.math.Arrow;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The surface of the sphere at one frequency, with its own water and its own index for finding patches.
+ * The world lives on the finest one, and the coarser ones are made from it when they are asked for,
+ * each time dividing the frequency by its smallest factor until it is one.  Every patch knows its parent
+ * in the coarser level, which is the coarse patch containing its middle, and every coarse patch knows
+ * its children, so that looking, drawing, or measuring the water can happen at whatever level of detail
+ * suits.  The water of a coarse level is the average of its children, gathered on demand.
+ * <p/>
+ * How long each level took to build and how much it allocated is remembered and logged.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class SurfaceLevel {
+    private Logger log = Logger.getLogger(getClass());
+    private int frequency;
+    private Water water;
+    private List<SurfacePatch> surfacePatches;
+    private SurfaceIndex surfaceIndex;
+    private SurfaceLevel finer, coarser;
+    private int[] parents;
+    private SurfacePatch[][] children;
+    private long buildMillis, buildBytes;
+
+    public SurfaceLevel(Water water) {
+        long startBytes = allocatedBytes();
+        long startTime = System.currentTimeMillis();
+        this.water = water;
+        this.frequency = SurfacePatch.getFrequency(water.size());
+        SurfaceTopology topology = SurfaceTopology.fetch(frequency);
+        this.surfacePatches = topology.createSurfacePatches(water);
+        this.surfaceIndex = topology.createSurfaceIndex(surfacePatches);
+        buildMillis = System.currentTimeMillis() - startTime;
+        buildBytes = startBytes < 0 ? -1 : allocatedBytes() - startBytes;
+        log.info(String.format(
+                "Surface of frequency %d has %d patches, built in %d ms allocating %s",
+                frequency, surfacePatches.size(), buildMillis, buildBytes < 0 ? "unknown memory" : (buildBytes / 1024) + " KB"
+        ));
+    }
+
+    public int getFrequency() {
+        return frequency;
+    }
+
+    public Water getWater() {
+        return water;
+    }
+
+    public List<SurfacePatch> getSurfacePatches() {
+        return surfacePatches;
+    }
+
+    public SurfaceIndex getSurfaceIndex() {
+        return surfaceIndex;
+    }
+
+    public SurfacePatch fetchPatch(Arrow arrow) {
+        return surfaceIndex.fetchPatch(arrow);
+    }
+
+    public long getBuildMillis() {
+        return buildMillis;
+    }
+
+    /**
+     * How many bytes were allocated building this level
+     *
+     * @return the bytes, or -1 if the virtual machine can't tell
+     */
+
+    public long getBuildBytes() {
+        return buildBytes;
+    }
+
+    public SurfaceLevel getFiner() {
+        return finer;
+    }
+
+    /**
+     * Get the next level down in detail, building it the first time
+     *
+     * @return the coarser level, or null if this is the coarsest
+     */
+
+    public synchronized SurfaceLevel getCoarser() {
+        if (coarser == null && frequency > 1) {
+            int coarseFrequency = frequency / smallestFactor(frequency);
+            SurfaceLevel level = new SurfaceLevel(new Water(new float[SurfacePatch.getFaceCount(coarseFrequency)]));
+            level.adopt(this);
+            coarser = level;
+            coarser.gatherWater();
+        }
+        return coarser;
+    }
+
+    public List<SurfaceLevel> getLevels() {
+        List<SurfaceLevel> levels = new ArrayList<SurfaceLevel>();
+        for (SurfaceLevel level = this; level != null; level = level.getCoarser()) {
+            levels.add(0, level);
+        }
+        return levels;
+    }
+
+    public SurfacePatch getParent(SurfacePatch surfacePatch) {
+        SurfaceLevel level = getCoarser();
+        if (level == null) {
+            return null;
+        }
+        return level.surfacePatches.get(parents[surfacePatch.getIndex()]);
+    }
+
+    /**
+     * Get the patches of the finer level whose middles are inside this one
+     *
+     * @param surfacePatch one of the patches of this level
+     * @return the children, or null if this is the finest level
+     */
+
+    public List<SurfacePatch> getChildren(SurfacePatch surfacePatch) {
+        if (children == null) {
+            return null;
+        }
+        return Arrays.asList(children[surfacePatch.getIndex()]);
+    }
+
+    /**
+     * Set the water of this level to the average of the water of the children, after doing the same
+     * for the finer levels that are not the finest.
+     */
+
+    public void gatherWater() {
+        if (finer == null) {
+            return;
+        }
+        finer.gatherWater();
+        float[] levels = water.getLevels();
+        for (int walk = 0; walk < levels.length; walk++) {
+            float total = 0;
+            for (SurfacePatch child : children[walk]) {
+                total += child.getWaterLevel();
+            }
+            levels[walk] = total / children[walk].length;
+        }
+    }
+
+    private void adopt(SurfaceLevel fineLevel) {
+        finer = fineLevel;
+        int[] parentOf = new int[fineLevel.surfacePatches.size()];
+        int[] childCount = new int[surfacePatches.size()];
+        for (SurfacePatch child : fineLevel.surfacePatches) {
+            SurfacePatch parent = findContaining(child.getMiddle());
+            parentOf[child.getIndex()] = parent.getIndex();
+            childCount[parent.getIndex()]++;
+        }
+        children = new SurfacePatch[surfacePatches.size()][];
+        for (int walk = 0; walk < children.length; walk++) {
+            if (childCount[walk] == 0) {
+                throw new RuntimeException("Surface patch " + walk + " of frequency " + frequency + " has no children");
+            }
+            children[walk] = new SurfacePatch[childCount[walk]];
+            childCount[walk] = 0;
+        }
+        for (SurfacePatch child : fineLevel.surfacePatches) {
+            int parent = parentOf[child.getIndex()];
+            children[parent][childCount[parent]++] = child;
+        }
+        fineLevel.parents = parentOf;
+    }
+
+    private SurfacePatch findContaining(Arrow arrow) {
+        SurfacePatch nearest = surfaceIndex.fetchPatch(arrow);
+        if (nearest.contains(arrow)) {
+            return nearest;
+        }
+        for (SurfacePatch adjacent : nearest.getAdjacent()) {
+            if (adjacent.contains(arrow)) {
+                return adjacent;
+            }
+        }
+        for (SurfacePatch surfacePatch : surfacePatches) {
+            if (surfacePatch.contains(arrow)) {
+                return surfacePatch;
+            }
+        }
+        return nearest; // right on an edge
+    }
+
+    private static int smallestFactor(int number) {
+        for (int factor = 2; factor * factor <= number; factor++) {
+            if (number % factor == 0) {
+                return factor;
+            }
+        }
+        return number;
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) threadBean;
+            if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
@@ -18,14 +18,10 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
 
 /**
- * One triangular segment of the sphere's surface, which contains a certain amount of water, as well
- * as a future amount of water to allow for two generations of values.  Water flows into the future of neighboring
- * triangles.
+ * One triangular segment of the sphere's surface, which contains a certain amount of water.  The water itself
+ * lives in the Water arrays, where it flows between neighboring triangles.
  * <p/>
  * Each segment also has a matrix to facilitate easy checking whether a location is within the triangle
  * or not.
@@ -34,20 +30,15 @@ import java.util.TreeSet;
  */
 
 public class SurfacePatch {
-    private List<Arrow> corners = new ArrayList<Arrow>();
-    private Arrow hit = new Arrow();
-    private Arrow middle = new Arrow();
-    private List<SurfacePatch> adjacentPatches = new ArrayList<SurfacePatch>();
-    private Space3 space = new Space3();
-    private float[] water;
-    private float futureWater;
+    private List<Arrow> corners = new ArrayList<Arrow>(3);
+    private Arrow middle;
+    private List<SurfacePatch> adjacentPatches = new ArrayList<SurfacePatch>(3);
+    private Space3 space;
+    private Water water;
     private int index;
 
-    public SurfacePatch(Arrow locationA, Arrow locationB, Arrow locationC, float[] water) {
-        corners.add(locationA);
-        corners.add(locationB);
-        corners.add(locationC);
-        this.water = water;
+    public SurfacePatch(Arrow locationA, Arrow locationB, Arrow locationC, Water water) {
+        this(locationA, locationB, locationC, new Space3(), new Arrow(), water);
         space.set(
                 corners.get(0).x, corners.get(1).x, corners.get(2).x,
                 corners.get(0).y, corners.get(1).y, corners.get(2).y,
@@ -60,6 +51,15 @@ public class SurfacePatch {
         middle.setSpan(Constants.SURFACE_RADIUS);
     }
 
+    SurfacePatch(Arrow locationA, Arrow locationB, Arrow locationC, Space3 space, Arrow middle, Water water) {
+        corners.add(locationA);
+        corners.add(locationB);
+        corners.add(locationC);
+        this.space = space;
+        this.middle = middle;
+        this.water = water;
+    }
+
     public int getIndex() {
         return index;
     }
@@ -68,10 +68,11 @@ public class SurfacePatch {
         this.index = index;
     }
 
-    public boolean contains(Arrow arrow) {
-        hit.set(arrow);
-        space.transform(hit);
-        return hit.x > 0 && hit.y > 0 && hit.z > 0;
+    public boolean contains(Arrow arrow) { // no scratch arrow, since beings may ask at the same time
+        double x = space.m00 * arrow.x + space.m01 * arrow.y + space.m02 * arrow.z;
+        double y = space.m10 * arrow.x + space.m11 * arrow.y + space.m12 * arrow.z;
+        double z = space.m20 * arrow.x + space.m21 * arrow.y + space.m22 * arrow.z;
+        return x > 0 && y > 0 && z > 0;
     }
 
     public List<SurfacePatch> getAdjacent() {
@@ -82,6 +83,10 @@ public class SurfacePatch {
         this.adjacentPatches.addAll(adjacentList);
     }
 
+    Space3 getSpace() {
+        return space;
+    }
+
     public List<Arrow> getCorners() {
         return corners;
     }
@@ -121,7 +126,21 @@ public class SurfacePatch {
     }
 
     public float getWaterLevel() {
-        float value = water[index];
+        return clamp(water.current[index]);
+    }
+
+    /**
+     * The water level felt by the physics of a being while the drinking of a tick is being watched
+     *
+     * @param order the place of the being in the tick
+     * @return the level right after that being drank
+     */
+
+    public float getWaterLevel(int order) {
+        return clamp(water.levelAfterDrinking(index, order));
+    }
+
+    private static float clamp(float value) {
         if (value < 0) {
             return 0;
         }
@@ -134,220 +153,173 @@ public class SurfacePatch {
     }
 
     public float consumeWater(float howMuch) {
-        if (howMuch < water[index]) {
-            water[index] -= howMuch;
-            return howMuch;
-        }
-        else {
-            howMuch = water[index];
-            water[index] = 0;
-            return howMuch;
-        }
+        water.drinking(index);
+        return consume(water.current, index, howMuch);
     }
 
-    private boolean isDeep() {
-        return getWaterLevel() > 0.5f;
+    /**
+     * Drink from a level kept aside, so that the water of this patch stays the same until what was drunk
+     * is poured out of it
+     *
+     * @param howMuch how much to drink
+     * @param drunk the levels kept aside, starting level and level now, for each patch drunk from
+     * @return how much was drunk
+     */
+
+    public float consumeWater(float howMuch, Map<SurfacePatch, float[]> drunk) {
+        float[] level = drunk.get(this);
+        if (level == null) {
+            level = new float[]{water.current[index], water.current[index]};
+            drunk.put(this, level);
+        }
+        return consume(level, 1, howMuch);
     }
 
-    public double prepare() {
-        return futureWater = getWaterLevel();
-    }
+    /**
+     * Take out of this patch what was drunk from a level kept aside
+     *
+     * @param level the starting level and the level after drinking
+     */
 
-    public void distribute() {
-        float water0 = getWaterLevel();
-        if (water0 > 1) { // emergency!  dispense with the extra water
-            float flow = (water0 - 1) / adjacentPatches.size();
-            for (SurfacePatch adjacent : this.adjacentPatches) {
-                flowTo(adjacent, flow);
-            }
+    public void pourOut(float[] level) {
+        if (water.current[index] == level[0]) { // nobody else was here, so it is as if it was drunk right away
+            water.current[index] = level[1];
         }
-        else if (water0 > 0) {
-            int deepCount = 0;
-            for (SurfacePatch adjacent : this.adjacentPatches) {
-                if (adjacent.isDeep()) {
-                    deepCount++;
-                }
-            }
-            switch (deepCount) {
-                case 0:
-//                    if (isDeep()) {
-                    for (SurfacePatch adjacent : this.adjacentPatches) {
-                        if (adjacent.isDeep()) {
-                            flowTo(adjacent, water0 / 3);
-                        }
-                    }
-//                    }
-                    break;
-                case 1:
-                    // i shouldn't be deep
-                    for (SurfacePatch adjacent : this.adjacentPatches) {
-                        if (adjacent.isDeep()) {
-                            flowTo(adjacent, water0);
-                        }
-                    }
-                    break;
-                case 2:
-                    // i should be extreme
-                    if (isDeep()) {
-                        for (SurfacePatch adjacent : this.adjacentPatches) {
-                            if (adjacent.isDeep()) {
-                                flowTo(adjacent, -(1 - water0) / 2);
-                            }
-                        }
-
-                    }
-                    else {
-                        for (SurfacePatch adjacent : this.adjacentPatches) {
-                            if (!adjacent.isDeep()) {
-                                flowTo(adjacent, water0 / 2);
-                            }
-                        }
-
-                    }
-                    break;
-                case 3:
-                    // i should be deep too
-//                    if (!isDeep()) {
-                    for (SurfacePatch adjacent : this.adjacentPatches) {
-                        flowTo(adjacent, -(1 - water0) / 3f);
-                    }
-//                    }
-                    break;
-            }
+        else {
+            consume(water.current, index, level[0] - level[1]);
         }
     }
 
-    public void rain(double amount) {
-        futureWater += amount;
-    }
-
-    public void commit() {
-        water[index] = futureWater;
+    private static float consume(float[] levels, int index, float howMuch) {
+        if (howMuch < levels[index]) {
+            levels[index] -= howMuch;
+            return howMuch;
+        }
+        else {
+            howMuch = levels[index];
+            levels[index] = 0;
+            return howMuch;
+        }
     }
 
     public String toString() {
         return "Surface(" + getWaterLevel() + ")";
     }
 
-    private void flowTo(SurfacePatch other, float flow) {
-        flow *= 0.1f;
-        futureWater -= flow;
-        other.futureWater += flow;
-    }
-
     public interface Holder {
         void setSurfacePatch(SurfacePatch surfacePatch);
 
         SurfacePatch getSurfacePatch();
     }
 
-    private static class Key implements Comparable<Key> {
-        private List<Node> nodes;
-
-        Key(Node... nodes) {
-            this.nodes = Arrays.asList(nodes);
-            Arrays.sort(nodes);
-        }
-
-        public int compareTo(Key o) {
-            for (int walk = 0; walk < nodes.size(); walk++) {
-                int comparison = nodes.get(walk).compareTo(o.nodes.get(walk));
-                if (comparison != 0) {
-                    return comparison;
-                }
-            }
-            return 0;
-        }
-
-        public boolean isFaceConnected(Key other) {
-            Set<Node> nodeSet = new TreeSet<Node>();
-            addNodes(nodeSet);
-            other.addNodes(nodeSet);
-            return nodeSet.size() == 4;
-        }
-
-        private void addNodes(Set<Node> nodeSet) {
-            nodeSet.addAll(nodes);
-        }
+    public static int getFaceCount(int frequency) {
+        return 20 * frequency * frequency;
     }
 
-    private static class Node implements Comparable<Node> {
-        private Vertex<Node> vertex;
-        private Map<Key, SurfacePatch> localPatches = new TreeMap<Key, SurfacePatch>();
-
-        public Node(Vertex<Node> vertex) {
-            this.vertex = vertex;
-        }
-
-        public void buildTriangles(Map<Key, SurfacePatch> surfacePatchMap, float[] water) {
-            List<Vertex<Node>> near = vertex.getNearby();
-            for (int walk = 0; walk < near.size(); walk++) {
-                Node current = near.get(walk).getOccupant();
-                Node next = near.get((walk + 1) % near.size()).getOccupant();
-                Key key = new Key(this, current, next);
-                SurfacePatch surfacePatch = surfacePatchMap.get(key);
-                if (surfacePatch == null) {
-                    surfacePatch = new SurfacePatch(
-                            this.vertex.getLocation(),
-                            next.vertex.getLocation(),
-                            current.vertex.getLocation(),
-                            water
-                    );
-                    surfacePatchMap.put(key, surfacePatch);
-                }
-                localPatches.put(key, surfacePatch);
-            }
-        }
-
-        public int compareTo(Node o) {
-            return vertex.getIndex() - o.vertex.getIndex();
+    public static int getFrequency(int faceCount) {
+        int frequency = (int) Math.round(Math.sqrt(faceCount / 20.0));
+        if (frequency < 1 || getFaceCount(frequency) != faceCount) {
+            throw new RuntimeException("No sphere has " + faceCount + " faces");
         }
+        return frequency;
     }
 
     public static float[] createWater(Noise noise) {
-        Sphere<Node> sphere = new Sphere<Node>(Constants.FREQUENCY);
-        float[] water = new float[sphere.getFaceCount()];
+        return createWater(noise, Constants.FREQUENCY);
+    }
+
+    public static float[] createWater(Noise noise, int frequency) {
+        float[] water = new float[getFaceCount(frequency)];
         for (int walk = 0; walk < water.length; walk++) {
             water[walk] = (float) noise.nextDouble();
         }
         return water;
     }
 
-    public static List<SurfacePatch> createSurfacePatches(final float[] water) {
-        final Map<Key, SurfacePatch> patches = new TreeMap<Key, SurfacePatch>();
-        Sphere<Node> sphere = new Sphere<Node>(Constants.FREQUENCY);
+    public static List<SurfacePatch> createSurfacePatches(Water water) {
+        return SurfaceTopology.fetch(getFrequency(water.size())).createSurfacePatches(water);
+    }
+
+    static List<SurfacePatch> buildSurfacePatches(int frequency) {
+        Sphere<Object> sphere = new Sphere<Object>(frequency);
         sphere.setRadius(Constants.SURFACE_RADIUS);
-        sphere.admitVisitor(new Vertex.Visitor<Node>() {
-            public void visit(Vertex<Node> vertex) {
-                vertex.setOccupant(new Node(vertex));
-            }
-        });
-        sphere.admitVisitor(new Vertex.Visitor<Node>() {
-            public void visit(Vertex<Node> vertex) {
-                vertex.getOccupant().buildTriangles(patches, water);
-            }
-        });
-        for (Map.Entry<Key, SurfacePatch> entry : patches.entrySet()) {
-            Map<Key, SurfacePatch> adjacentPatches = new TreeMap<Key, SurfacePatch>();
-            for (Node node : entry.getKey().nodes) {
-                for (Map.Entry<Key, SurfacePatch> nodeEntry : node.localPatches.entrySet()) {
-                    if (nodeEntry.getValue() != entry.getValue() && nodeEntry.getKey().isFaceConnected(entry.getKey())) {
-                        adjacentPatches.put(nodeEntry.getKey(), nodeEntry.getValue());
+        int vertexCount = sphere.getVertexCount();
+        int faceCount = sphere.getFaceCount();
+        // each face is found once, from its lowest vertex, and keyed by its three vertex indexes in ascending order
+        int[] faceVertices = new int[faceCount * 3];
+        long[] faceKeys = new long[faceCount];
+        int faces = 0;
+        for (int walk = 0; walk < vertexCount; walk++) {
+            List<Vertex<Object>> near = sphere.getVertex(walk).getNearby();
+            for (int side = 0; side < near.size(); side++) {
+                int current = near.get(side).getIndex();
+                int next = near.get((side + 1) % near.size()).getIndex();
+                if (walk < current && walk < next) {
+                    if (faces == faceCount) {
+                        throw new RuntimeException("Faces was more than " + faceCount);
                     }
+                    faceVertices[faces * 3] = walk;
+                    faceVertices[faces * 3 + 1] = next;
+                    faceVertices[faces * 3 + 2] = current;
+                    long key = ((long) walk * vertexCount + Math.min(current, next)) * vertexCount + Math.max(current, next);
+                    faceKeys[faces] = key * faceCount + faces;
+                    faces++;
                 }
             }
-            if (adjacentPatches.size() != 3) {
-                throw new RuntimeException("Always 3 adjacent patches");
+        }
+        if (faces != faceCount) {
+            throw new RuntimeException("Faces was " + faces + " but should be " + faceCount);
+        }
+        Arrays.sort(faceKeys); // patches are ordered by their keys
+        List<SurfacePatch> surfacePatchList = new ArrayList<SurfacePatch>(faceCount);
+        int[] patchOfFace = new int[faceCount];
+        for (int walk = 0; walk < faceCount; walk++) {
+            int face = (int) (faceKeys[walk] % faceCount);
+            patchOfFace[face] = walk;
+            SurfacePatch surfacePatch = new SurfacePatch(
+                    sphere.getVertex(faceVertices[face * 3]).getLocation(),
+                    sphere.getVertex(faceVertices[face * 3 + 1]).getLocation(),
+                    sphere.getVertex(faceVertices[face * 3 + 2]).getLocation(),
+                    null
+            );
+            surfacePatch.setIndex(walk);
+            surfacePatchList.add(surfacePatch);
+        }
+        // the two patches on either side of an edge end up next to each other when the edges are sorted
+        long[] edgeKeys = new long[faceCount * 3];
+        for (int face = 0; face < faceCount; face++) {
+            for (int side = 0; side < 3; side++) {
+                int from = faceVertices[face * 3 + side];
+                int to = faceVertices[face * 3 + (side + 1) % 3];
+                long key = (long) Math.min(from, to) * vertexCount + Math.max(from, to);
+                edgeKeys[face * 3 + side] = key * faceCount + patchOfFace[face];
             }
-            entry.getValue().addAdjacent(adjacentPatches.values());
         }
-        if (patches.size() != sphere.getFaceCount()) {
-            throw new RuntimeException("Faces was " + patches.size() + " but should be " + sphere.getFaceCount());
+        Arrays.sort(edgeKeys);
+        int[] adjacent = new int[faceCount * 3];
+        int[] adjacentCount = new int[faceCount];
+        for (int walk = 0; walk < edgeKeys.length; walk += 2) {
+            if (edgeKeys[walk] / faceCount != edgeKeys[walk + 1] / faceCount) {
+                throw new RuntimeException("Always 2 patches on an edge");
+            }
+            int patchA = (int) (edgeKeys[walk] % faceCount);
+            int patchB = (int) (edgeKeys[walk + 1] % faceCount);
+            if (adjacentCount[patchA] == 3 || adjacentCount[patchB] == 3) {
+                throw new RuntimeException("Always 3 adjacent patches");
+            }
+            adjacent[patchA * 3 + adjacentCount[patchA]++] = patchB;
+            adjacent[patchB * 3 + adjacentCount[patchB]++] = patchA;
         }
-        List<SurfacePatch> surfacePatchList = new ArrayList<SurfacePatch>(patches.values()); // order is alphabetical using key
-        int index = 0;
-        for (SurfacePatch surfacePatch : surfacePatchList) {
-            surfacePatch.setIndex(index++);
+        for (int walk = 0; walk < faceCount; walk++) {
+            if (adjacentCount[walk] != 3) {
+                throw new RuntimeException("Always 3 adjacent patches");
+            }
+            Arrays.sort(adjacent, walk * 3, walk * 3 + 3);
+            surfacePatchList.get(walk).addAdjacent(Arrays.asList(
+                    surfacePatchList.get(adjacent[walk * 3]),
+                    surfacePatchList.get(adjacent[walk * 3 + 1]),
+                    surfacePatchList.get(adjacent[walk * 3 + 2])
+            ));
         }
         return surfacePatchList;
     }
@@ -0,0 +1,278 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+package org.darwinathome.universe;
+
+import org.apache.log4j.Logger;
+import org.darwinathome.geometry.math.Arrow;
+import org.darwinathome.geometry.math.Space3;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything about the surface patches of one frequency which doesn't change, packed into a buffer: the
+ * corners, the inverted matrix and the middle of every patch, which patches are adjacent, and the cells
+ * of the surface index.  Making the patches and their index from this skips building the sphere and all
+ * of the geometry that goes with it.
+ * <p/>
+ * The buffer is built only once per frequency.  It is written to a file in the topology directory, so that
+ * afterwards it can be mapped into memory instead, and it is kept in memory so that every world after
+ * the first one gets it for free.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class SurfaceTopology {
+    private static final Logger LOG = Logger.getLogger(SurfaceTopology.class);
+    private static final int MAGIC = 0x44614854;
+    private static final int VERSION = 1;
+    private static final String EXTENSION = ".topology";
+    private static final int HEADER_SIZE = 7 * 4;
+    private static final int VERTEX_SIZE = 3 * 8;
+    private static final int PATCH_SIZE = 6 * 4 + 12 * 8;
+    private static final Map<Integer, SurfaceTopology> TOPOLOGIES = new HashMap<Integer, SurfaceTopology>();
+    private static File directory = new File(System.getProperty("java.io.tmpdir"), "darwinathome");
+    private ByteBuffer buffer;
+    private int frequency, vertexCount, faceCount, cellCount, cellPatchCount;
+
+    private SurfaceTopology(ByteBuffer buffer) {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new RuntimeException("Not a surface topology of version " + VERSION);
+        }
+        frequency = buffer.getInt(8);
+        vertexCount = buffer.getInt(12);
+        faceCount = buffer.getInt(16);
+        cellCount = buffer.getInt(20);
+        cellPatchCount = buffer.getInt(24);
+        if (faceCount != SurfacePatch.getFaceCount(frequency) || buffer.capacity() != getSize(vertexCount, faceCount, cellCount, cellPatchCount)) {
+            throw new RuntimeException("Surface topology of frequency " + frequency + " is damaged");
+        }
+    }
+
+    /**
+     * Choose where the topology files live
+     *
+     * @param directory where to keep them, or null to keep them only in memory
+     */
+
+    public static synchronized void setDirectory(File directory) {
+        SurfaceTopology.directory = directory;
+    }
+
+    public static synchronized SurfaceTopology fetch(int frequency) {
+        SurfaceTopology topology = TOPOLOGIES.get(frequency);
+        if (topology == null) {
+            topology = load(frequency);
+            TOPOLOGIES.put(frequency, topology);
+        }
+        return topology;
+    }
+
+    public int getFrequency() {
+        return frequency;
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    public int getFaceCount() {
+        return faceCount;
+    }
+
+    public List<SurfacePatch> createSurfacePatches(Water water) {
+        if (water.size() != faceCount) {
+            throw new RuntimeException("Water for " + water.size() + " patches, but there are " + faceCount);
+        }
+        Arrow[] vertices = new Arrow[vertexCount];
+        for (int walk = 0; walk < vertexCount; walk++) {
+            int offset = HEADER_SIZE + walk * VERTEX_SIZE;
+            vertices[walk] = new Arrow(buffer.getDouble(offset), buffer.getDouble(offset + 8), buffer.getDouble(offset + 16));
+        }
+        List<SurfacePatch> surfacePatches = new ArrayList<SurfacePatch>(faceCount);
+        for (int walk = 0; walk < faceCount; walk++) {
+            int offset = getPatchOffset(walk);
+            int matrix = offset + 6 * 4;
+            Space3 space = new Space3();
+            space.set(
+                    buffer.getDouble(matrix), buffer.getDouble(matrix + 8), buffer.getDouble(matrix + 16),
+                    buffer.getDouble(matrix + 24), buffer.getDouble(matrix + 32), buffer.getDouble(matrix + 40),
+                    buffer.getDouble(matrix + 48), buffer.getDouble(matrix + 56), buffer.getDouble(matrix + 64)
+            );
+            int middle = matrix + 9 * 8;
+            SurfacePatch surfacePatch = new SurfacePatch(
+                    vertices[buffer.getInt(offset)],
+                    vertices[buffer.getInt(offset + 4)],
+                    vertices[buffer.getInt(offset + 8)],
+                    space,
+                    new Arrow(buffer.getDouble(middle), buffer.getDouble(middle + 8), buffer.getDouble(middle + 16)),
+                    water
+            );
+            surfacePatch.setIndex(walk);
+            surfacePatches.add(surfacePatch);
+        }
+        for (int walk = 0; walk < faceCount; walk++) {
+            int offset = getPatchOffset(walk) + 3 * 4;
+            surfacePatches.get(walk).addAdjacent(Arrays.asList(
+                    surfacePatches.get(buffer.getInt(offset)),
+                    surfacePatches.get(buffer.getInt(offset + 4)),
+                    surfacePatches.get(buffer.getInt(offset + 8))
+            ));
+        }
+        water.connect(surfacePatches);
+        return surfacePatches;
+    }
+
+    public SurfaceIndex createSurfaceIndex(List<SurfacePatch> surfacePatches) {
+        int offset = getPatchOffset(faceCount);
+        int[] cellStarts = new int[cellCount + 1];
+        for (int walk = 0; walk < cellStarts.length; walk++, offset += 4) {
+            cellStarts[walk] = buffer.getInt(offset);
+        }
+        int[] cellPatches = new int[cellPatchCount];
+        for (int walk = 0; walk < cellPatches.length; walk++, offset += 4) {
+            cellPatches[walk] = buffer.getInt(offset);
+        }
+        return new SurfaceIndex(surfacePatches, cellStarts, cellPatches);
+    }
+
+    public static SurfaceTopology build(int frequency) {
+        long startTime = System.currentTimeMillis();
+        List<SurfacePatch> surfacePatches = SurfacePatch.buildSurfacePatches(frequency);
+        SurfaceTopology topology = new SurfaceTopology(encode(frequency, surfacePatches, new SurfaceIndex(surfacePatches)));
+        LOG.info("Built surface topology of frequency " + frequency + " in " + (System.currentTimeMillis() - startTime) + " ms");
+        return topology;
+    }
+
+    public static SurfaceTopology map(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            return new SurfaceTopology(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        finally {
+            randomAccessFile.close(); // the mapping stays valid
+        }
+    }
+
+    public void write(File file) throws IOException {
+        if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+            throw new IOException("Unable to create directory " + file.getParentFile());
+        }
+        File temporary = File.createTempFile("surface-" + frequency, ".tmp", file.getParentFile());
+        FileOutputStream outputStream = new FileOutputStream(temporary);
+        try {
+            ByteBuffer contents = buffer.duplicate();
+            contents.clear();
+            FileChannel channel = outputStream.getChannel();
+            while (contents.hasRemaining()) {
+                channel.write(contents);
+            }
+            channel.force(true);
+        }
+        finally {
+            outputStream.close();
+        }
+        if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file))) {
+            temporary.delete();
+            throw new IOException("Unable to rename " + temporary + " to " + file);
+        }
+        LOG.info("Saved surface topology to " + file);
+    }
+
+    private int getPatchOffset(int index) {
+        return HEADER_SIZE + vertexCount * VERTEX_SIZE + index * PATCH_SIZE;
+    }
+
+    private static int getSize(int vertexCount, int faceCount, int cellCount, int cellPatchCount) {
+        return HEADER_SIZE + vertexCount * VERTEX_SIZE + faceCount * PATCH_SIZE + (cellCount + 1 + cellPatchCount) * 4;
+    }
+
+    private static SurfaceTopology load(int frequency) {
+        File file = directory == null ? null : new File(directory, "surface-" + frequency + EXTENSION);
+        if (file != null && file.exists()) {
+            try {
+                SurfaceTopology topology = map(file);
+                if (topology.frequency == frequency) {
+                    return topology;
+                }
+                LOG.warn("Rebuilding " + file + " because it has frequency " + topology.frequency);
+            }
+            catch (IOException e) {
+                LOG.warn("Rebuilding " + file + " because it can't be mapped", e);
+            }
+            catch (RuntimeException e) {
+                LOG.warn("Rebuilding " + file + ": " + e.getMessage());
+            }
+        }
+        SurfaceTopology topology = build(frequency);
+        if (file != null) {
+            try {
+                topology.write(file);
+            }
+            catch (IOException e) {
+                LOG.warn("Unable to save " + file + ", so it will be built again next time", e);
+            }
+        }
+        return topology;
+    }
+
+    private static ByteBuffer encode(int frequency, List<SurfacePatch> surfacePatches, SurfaceIndex surfaceIndex) {
+        Map<Arrow, Integer> vertexIndex = new IdentityHashMap<Arrow, Integer>();
+        List<Arrow> vertices = new ArrayList<Arrow>();
+        for (SurfacePatch surfacePatch : surfacePatches) {
+            for (Arrow corner : surfacePatch.getCorners()) {
+                if (!vertexIndex.containsKey(corner)) {
+                    vertexIndex.put(corner, vertices.size());
+                    vertices.add(corner);
+                }
+            }
+        }
+        int[] cellStarts = surfaceIndex.getCellStarts();
+        int[] cellPatches = surfaceIndex.getCellPatches();
+        int cellCount = cellStarts.length - 1;
+        ByteBuffer buffer = ByteBuffer.allocate(getSize(vertices.size(), surfacePatches.size(), cellCount, cellPatches.length));
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(frequency).putInt(vertices.size()).putInt(surfacePatches.size());
+        buffer.putInt(cellCount).putInt(cellPatches.length);
+        for (Arrow vertex : vertices) {
+            buffer.putDouble(vertex.x).putDouble(vertex.y).putDouble(vertex.z);
+        }
+        for (SurfacePatch surfacePatch : surfacePatches) {
+            for (Arrow corner : surfacePatch.getCorners()) {
+                buffer.putInt(vertexIndex.get(corner));
+            }
+            for (SurfacePatch adjacent : surfacePatch.getAdjacent()) {
+                buffer.putInt(adjacent.getIndex());
+            }
+            Space3 space = surfacePatch.getSpace();
+            buffer.putDouble(space.m00).putDouble(space.m01).putDouble(space.m02);
+            buffer.putDouble(space.m10).putDouble(space.m11).putDouble(space.m12);
+            buffer.putDouble(space.m20).putDouble(space.m21).putDouble(space.m22);
+            Arrow middle = surfacePatch.getMiddle();
+            buffer.putDouble(middle.x).putDouble(middle.y).putDouble(middle.z);
+        }
+        for (int cellStart : cellStarts) {
+            buffer.putInt(cellStart);
+        }
+        for (int cellPatch : cellPatches) {
+            buffer.putInt(cellPatch);
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
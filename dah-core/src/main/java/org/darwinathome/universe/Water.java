@@ -0,0 +1,332 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+package org.darwinathome.universe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The water of all the surface patches in flat arrays, with the current levels and the next generation
+ * kept apart so that the flow between neighbors can be worked out in chunks at the same time.
+ * <p/>
+ * Each patch gathers what flows in and out of it in the same order as when every patch pushed water into its
+ * neighbors one after the other, so the levels come out exactly the same whether there is one thread or many.
+ * <p/>
+ * While drinking is watched, each drink remembers the level before it and which being it was, so that
+ * the physics of a being can feel the water as it was right after that being drank, just as when each
+ * being drank and moved before the next one.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class Water {
+    private static final int CHUNK_SIZE = 1024;
+    private static final int ADJACENT = 3;
+    private static final int SOURCES = ADJACENT + 1;
+    private static final float DEEP = 0.5f;
+    private static final float FLOW_FACTOR = 0.1f;
+    float[] current;
+    private float[] next;
+    private float[] level;
+    private float[] flow;
+    private byte[] flowing;
+    private int[] adjacent;
+    private int[] sources;
+    private int[] sourceSlot;
+    private float[] chunkTotals;
+    private List<Callable<Object>> levelTasks = new ArrayList<Callable<Object>>();
+    private List<Callable<Object>> flowTasks = new ArrayList<Callable<Object>>();
+    private List<Callable<Object>> gatherTasks = new ArrayList<Callable<Object>>();
+    private int drinker = -1;
+    private int[] firstDrink;
+    private int drinkCount;
+    private int[] drinkPatch = new int[16];
+    private int[] drinkOrder = new int[16];
+    private int[] nextDrink = new int[16];
+    private float[] drinkBefore = new float[16];
+
+    public Water(float[] levels) {
+        this.current = levels;
+        this.next = new float[levels.length];
+        this.level = new float[levels.length];
+        this.flow = new float[levels.length];
+        this.flowing = new byte[levels.length];
+        this.firstDrink = new int[levels.length];
+        Arrays.fill(firstDrink, -1);
+        int chunks = (levels.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        this.chunkTotals = new float[chunks];
+        for (int walk = 0; walk < chunks; walk++) {
+            final int chunk = walk;
+            final int from = walk * CHUNK_SIZE;
+            final int to = Math.min(levels.length, from + CHUNK_SIZE);
+            levelTasks.add(new Callable<Object>() {
+                public Object call() throws Exception {
+                    chunkTotals[chunk] = measure(from, to);
+                    return null;
+                }
+            });
+            flowTasks.add(new Callable<Object>() {
+                public Object call() throws Exception {
+                    decide(from, to);
+                    return null;
+                }
+            });
+            gatherTasks.add(new Callable<Object>() {
+                public Object call() throws Exception {
+                    gather(from, to);
+                    return null;
+                }
+            });
+        }
+    }
+
+    void connect(List<SurfacePatch> surfacePatches) {
+        if (surfacePatches.size() != current.length) {
+            throw new RuntimeException("Water for " + current.length + " patches but there are " + surfacePatches.size());
+        }
+        adjacent = new int[current.length * ADJACENT];
+        for (SurfacePatch surfacePatch : surfacePatches) {
+            List<SurfacePatch> adjacentPatches = surfacePatch.getAdjacent();
+            if (adjacentPatches.size() != ADJACENT) {
+                throw new RuntimeException("Always " + ADJACENT + " adjacent patches");
+            }
+            for (int walk = 0; walk < ADJACENT; walk++) {
+                adjacent[surfacePatch.getIndex() * ADJACENT + walk] = adjacentPatches.get(walk).getIndex();
+            }
+        }
+        sources = new int[current.length * SOURCES];
+        sourceSlot = new int[current.length * SOURCES];
+        for (int patch = 0; patch < current.length; patch++) {
+            int count = 0;
+            sources[patch * SOURCES + count++] = patch;
+            for (int walk = 0; walk < ADJACENT; walk++) {
+                int neighbor = adjacent[patch * ADJACENT + walk];
+                int position = count++;
+                while (position > 0 && sources[patch * SOURCES + position - 1] > neighbor) {
+                    sources[patch * SOURCES + position] = sources[patch * SOURCES + position - 1];
+                    position--;
+                }
+                sources[patch * SOURCES + position] = neighbor;
+            }
+            for (int walk = 0; walk < SOURCES; walk++) {
+                int source = sources[patch * SOURCES + walk];
+                sourceSlot[patch * SOURCES + walk] = source == patch ? -1 : slotOf(source, patch);
+            }
+        }
+    }
+
+    public float[] getLevels() {
+        return current;
+    }
+
+    public int size() {
+        return current.length;
+    }
+
+    /**
+     * Work out the next generation of water levels, which only replaces the current one at commit.
+     *
+     * @param workers to spread the chunks over, or null to do it all in this thread
+     * @return the total water at the start, added up the same way every time
+     */
+
+    public float flow(Crew workers) {
+        run(levelTasks, workers);
+        run(flowTasks, workers);
+        run(gatherTasks, workers);
+        float total = 0;
+        for (float chunkTotal : chunkTotals) {
+            total += chunkTotal;
+        }
+        return total;
+    }
+
+    /**
+     * Remember the drinks that follow, until forgetDrinking()
+     *
+     * @param order the place of the being drinking now, which only goes up
+     */
+
+    void watchDrinking(int order) {
+        drinker = order;
+    }
+
+    void forgetDrinking() {
+        for (int walk = 0; walk < drinkCount; walk++) {
+            firstDrink[drinkPatch[walk]] = -1;
+        }
+        drinkCount = 0;
+        drinker = -1;
+    }
+
+    void drinking(int index) {
+        if (drinker < 0) {
+            return;
+        }
+        if (drinkCount == drinkPatch.length) {
+            drinkPatch = Arrays.copyOf(drinkPatch, drinkCount * 2);
+            drinkOrder = Arrays.copyOf(drinkOrder, drinkCount * 2);
+            nextDrink = Arrays.copyOf(nextDrink, drinkCount * 2);
+            drinkBefore = Arrays.copyOf(drinkBefore, drinkCount * 2);
+        }
+        drinkPatch[drinkCount] = index;
+        drinkOrder[drinkCount] = drinker;
+        drinkBefore[drinkCount] = current[index];
+        nextDrink[drinkCount] = -1;
+        if (firstDrink[index] < 0) {
+            firstDrink[index] = drinkCount;
+        }
+        else {
+            int last = firstDrink[index];
+            while (nextDrink[last] >= 0) {
+                last = nextDrink[last];
+            }
+            nextDrink[last] = drinkCount;
+        }
+        drinkCount++;
+    }
+
+    /**
+     * The level of a patch as it was right after the being in the given place drank
+     *
+     * @param index of the patch
+     * @param order the place of the being
+     * @return the level before the first drink by a later being, or the current level
+     */
+
+    float levelAfterDrinking(int index, int order) {
+        for (int drink = firstDrink[index]; drink >= 0; drink = nextDrink[drink]) {
+            if (drinkOrder[drink] > order) {
+                return drinkBefore[drink];
+            }
+        }
+        return current[index];
+    }
+
+    public void rain(int index, double amount) {
+        next[index] += amount;
+    }
+
+    public void commit() {
+        float[] swap = current;
+        current = next;
+        next = swap;
+    }
+
+    private float measure(int from, int to) {
+        float total = 0;
+        for (int patch = from; patch < to; patch++) {
+            float value = current[patch];
+            if (value < 0) {
+                value = 0;
+            }
+            else if (value > 1) {
+                value = 1;
+            }
+            level[patch] = value;
+            total += value;
+        }
+        return total;
+    }
+
+    private void decide(int from, int to) {
+        for (int patch = from; patch < to; patch++) {
+            float water0 = level[patch];
+            int deep = 0;
+            int deepCount = 0;
+            for (int walk = 0; walk < ADJACENT; walk++) {
+                if (level[adjacent[patch * ADJACENT + walk]] > DEEP) {
+                    deep |= 1 << walk;
+                    deepCount++;
+                }
+            }
+            int all = (1 << ADJACENT) - 1;
+            float amount = 0;
+            int mask = 0;
+            if (water0 > 1) { // emergency!  dispense with the extra water
+                amount = (water0 - 1) / ADJACENT;
+                mask = all;
+            }
+            else if (water0 > 0) {
+                switch (deepCount) {
+                    case 1:
+                        amount = water0;
+                        mask = deep;
+                        break;
+                    case 2:
+                        if (water0 > DEEP) {
+                            amount = -(1 - water0) / 2;
+                            mask = deep;
+                        }
+                        else {
+                            amount = water0 / 2;
+                            mask = all & ~deep;
+                        }
+                        break;
+                    case 3:
+                        amount = -(1 - water0) / 3f;
+                        mask = all;
+                        break;
+                }
+            }
+            flow[patch] = amount * FLOW_FACTOR;
+            flowing[patch] = (byte) mask;
+        }
+    }
+
+    private void gather(int from, int to) {
+        for (int patch = from; patch < to; patch++) {
+            float value = level[patch];
+            for (int walk = 0; walk < SOURCES; walk++) {
+                int source = sources[patch * SOURCES + walk];
+                int slot = sourceSlot[patch * SOURCES + walk];
+                if (slot < 0) {
+                    for (int bit = 0; bit < ADJACENT; bit++) {
+                        if ((flowing[patch] & (1 << bit)) != 0) {
+                            value -= flow[patch];
+                        }
+                    }
+                }
+                else if ((flowing[source] & (1 << slot)) != 0) {
+                    value += flow[source];
+                }
+            }
+            next[patch] = value;
+        }
+    }
+
+    private int slotOf(int patch, int neighbor) {
+        for (int walk = 0; walk < ADJACENT; walk++) {
+            if (adjacent[patch * ADJACENT + walk] == neighbor) {
+                return walk;
+            }
+        }
+        throw new RuntimeException("Patch " + neighbor + " is not adjacent to " + patch);
+    }
+
+    private static void run(List<Callable<Object>> tasks, Crew workers) {
+        try {
+            if (workers == null) {
+                for (int walk = 0; walk < tasks.size(); walk++) {
+                    tasks.get(walk).call();
+                }
+            }
+            else {
+                workers.run(tasks);
+            }
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException("Water flow failed", e.getCause());
+        }
+        catch (Exception e) {
+            throw new RuntimeException("Water flow failed", e);
+        }
+    }
+}
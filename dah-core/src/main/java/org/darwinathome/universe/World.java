@@ -15,6 +15,8 @@ import org.darwinathome.body.JointSurface;
 import org.darwinathome.genetics.Noise;
 import org.darwinathome.genetics.impl.PseudoNoise;
 import org.darwinathome.geometry.math.Arrow;
+import org.darwinathome.geometry.structure.Fabric;
+import org.darwinathome.geometry.structure.PackedPhysics;
 import org.darwinathome.geometry.structure.Physics;
 import org.darwinathome.geometry.transform.Relocator;
 
@@ -22,12 +24,15 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The entire universe where it all happens
@@ -37,18 +42,33 @@ import java.util.concurrent.CopyOnWriteArrayList;
 
 public class World {
     private static final String MAGIC_STRING = "Tetragotchi";
+    private static final int BEING_INDEX_FREQUENCY = 5;
     private Logger log = Logger.getLogger(getClass());
     private List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
     private Noise noise;
     private BeingFactory beingFactory;
     private Map<String, Being> beings = new TreeMap<String, Being>();
+    private List<Being> ticking = new ArrayList<Being>();
+    private Exception[] failures = new Exception[0];
+    private boolean beingsChanged;
     private List<Being> deadBeings = new ArrayList<Being>();
     private List<Being> rebornBeings = new ArrayList<Being>();
     private List<SurfacePatch> surfacePatches;
-    private float[] water;
-    private Physics physics;
+    private SurfaceIndex surfaceIndex;
+    private SurfaceLevel surface;
+    private volatile BeingIndex beingIndex;
+    private Water water;
+    private Fabric.PhysicsTransformation physics;
     private Physics.Constraints constraints;
+    private Crew workers;
+    private List<Fabric.PhysicsTransformation> workerPhysics = new ArrayList<Fabric.PhysicsTransformation>();
+    private List<SphericalPhysics> workerConstraints = new ArrayList<SphericalPhysics>();
+    private List<Callable<Object>> workerTasks = new ArrayList<Callable<Object>>();
+    private AtomicInteger nextBeing = new AtomicInteger();
     private long patchAge, age;
+    private double quiescentSpeed;
+    private int quiescentTicks;
+    private int sleepingCount, awakeCount;
     private transient double totalWaterLastTime;
 
     public interface Listener {
@@ -59,16 +79,22 @@ public class World {
     }
 
     protected World(Noise noise) {
-        this(noise, SurfacePatch.createWater(noise));
+        this(noise, Constants.FREQUENCY);
+    }
+
+    protected World(Noise noise, int frequency) {
+        this(noise, SurfacePatch.createWater(noise, checkFrequency(frequency)));
     }
 
     private World(Noise noise, float[] water) {
         this.noise = noise;
-        this.water = water;
-        surfacePatches = SurfacePatch.createSurfacePatches(water);
-        this.beingFactory = new BeingFactory(noise, new JointSurface.Factory(surfacePatches), new OutsideImpl());
+        this.surface = new SurfaceLevel(new Water(water));
+        this.water = surface.getWater();
+        surfacePatches = surface.getSurfacePatches();
+        surfaceIndex = surface.getSurfaceIndex();
+        this.beingFactory = new BeingFactory(noise, new JointSurface.Factory(surfaceIndex), new OutsideImpl());
         constraints = new SphericalPhysics();
-        physics = new Physics(constraints);
+        physics = createPhysics(false, constraints);
     }
 
     public void addListener(Listener listener) {
@@ -88,24 +114,57 @@ public class World {
     }
 
     public Being getNearestBeing(Arrow arrow, Being avoid) {
-        double bestDot = Double.NEGATIVE_INFINITY;
-        Being nearest = null;
-        for (Being being : getBeings()) {
-            if (being == avoid) continue;
-            double dot = arrow.dot(being.getGeometry().getBodyCenter());
-            if (dot > bestDot) {
-                bestDot = dot;
-                nearest = being;
+        List<Being> nearest = getBeingIndex().getNearest(arrow, 1, avoid);
+        return nearest.isEmpty() ? null : nearest.get(0);
+    }
+
+    /**
+     * Find the beings in the directions closest to the given one
+     *
+     * @param arrow the direction
+     * @param count how many at most
+     * @param avoid a being not to find, or null
+     * @return the beings, nearest first
+     */
+
+    public List<Being> getNearestBeings(Arrow arrow, int count, Being avoid) {
+        return getBeingIndex().getNearest(arrow, count, avoid);
+    }
+
+    /**
+     * Find the beings within a distance of the given direction, measured along the surface
+     *
+     * @param arrow the direction
+     * @param distance how far along the surface
+     * @param avoid a being not to find, or null
+     * @return the beings, nearest first
+     */
+
+    public List<Being> getBeingsWithin(Arrow arrow, double distance, Being avoid) {
+        return getBeingIndex().getWithin(arrow, distance / Constants.SURFACE_RADIUS, avoid);
+    }
+
+    private BeingIndex getBeingIndex() {
+        if (beingIndex == null) {
+            synchronized (this) {
+                if (beingIndex == null) {
+                    SurfaceLevel level = surface;
+                    while (level.getCoarser() != null && level.getCoarser().getFrequency() >= BEING_INDEX_FREQUENCY) {
+                        level = level.getCoarser();
+                    }
+                    beingIndex = new BeingIndex(level, beings.values());
+                }
             }
         }
-        return nearest;
+        return beingIndex;
     }
 
     public void write(DataOutputStream dos) throws IOException {
         dos.write(MAGIC_STRING.getBytes("ASCII"));
         dos.write(0);
-        dos.writeShort(water.length);
-        for (float a : water) {
+        float[] levels = water.getLevels();
+        dos.writeShort(levels.length);
+        for (float a : levels) {
             dos.writeFloat(a);
         }
         dos.writeLong(patchAge);
@@ -117,11 +176,42 @@ public class World {
         log.info("saved " + beings.size() + " beings");
     }
 
+    /**
+     * Find where the beings start in what write() produced, each of them as the length of its Fablob
+     * followed by the Fablob itself, so that they can be handled one by one.
+     *
+     * @param world the written world
+     * @return the offset of the first being
+     */
+
+    public static int getBeingsOffset(byte[] world) {
+        int sizeOffset = MAGIC_STRING.length() + 1;
+        int levelCount = ((world[sizeOffset] & 0xFF) << 8) | (world[sizeOffset + 1] & 0xFF);
+        return sizeOffset + 2 + levelCount * 4 + 8 + 8 + 4;
+    }
+
     public static World create() {
         return new World(new PseudoNoise());
     }
 
+    public static World create(int frequency) {
+        return new World(new PseudoNoise(), frequency);
+    }
+
     public static World read(DataInputStream dis) throws IOException {
+        return read(dis, new PseudoNoise());
+    }
+
+    /**
+     * Read a world which is to carry on with the given noise, so that it does exactly what it did before
+     *
+     * @param dis where the world comes from
+     * @param noise the noise it had when it was written
+     * @return the world
+     * @throws IOException when reading fails
+     */
+
+    public static World read(DataInputStream dis, Noise noise) throws IOException {
         byte[] magic = new byte[MAGIC_STRING.length()];
         if (dis.read(magic) != magic.length) {
             throw new IOException("Couldn't read magic string.  This is not a World file!");
@@ -131,19 +221,20 @@ public class World {
             throw new IOException("Couldn't find magic string, found [" + magicString + "].  This is not a World file!");
         }
         dis.readByte(); // ignore;
-        int altitudeSize = dis.readShort();
+        int altitudeSize = dis.readUnsignedShort();
+        checkFrequency(SurfacePatch.getFrequency(altitudeSize));
         float[] altitude = new float[altitudeSize];
         for (int walk = 0; walk < altitude.length; walk++) {
             altitude[walk] = dis.readFloat();
         }
-        World world = new World(new PseudoNoise(), altitude);
+        World world = new World(noise, altitude);
         world.patchAge = dis.readLong();
         world.age = dis.readLong();
         int beingCount = dis.readInt();
         while (beingCount-- > 0) {
             Being being = world.getBeingFactory().restore(dis);
             world.log.info(String.format("Loaded %s (age %d), prey: %s", being, being.getBody().getAge(), being.getPreyName()));
-            world.beings.put(being.toString(), being);
+            world.putBeing(being);
         }
         for (Being being : world.beings.values()) {
             being.getGeometry().findBodyCenter();
@@ -156,48 +247,77 @@ public class World {
 
     public void experienceTime(int duration) {
         age += duration;
+        refreshTicking();
         if (age - patchAge > Constants.ITERATIONS_PER_PATCH_LIFE) {
             patchLife();
             patchAge += Constants.ITERATIONS_PER_PATCH_LIFE;
         }
         physics.setIterations(duration);
-        for (Being being : beings.values()) {
-            being.getGeometry().refresh();
+        for (int walk = 0; walk < ticking.size(); walk++) {
+            ticking.get(walk).getGeometry().refresh();
         }
-        for (Being being : beings.values()) {
+        for (int walk = 0; walk < ticking.size(); walk++) {
+            Being being = ticking.get(walk);
             if (!being.getPreyName().isEmpty()) {
                 being.getGeometry().handlePrey();
             }
         }
-        Iterator<Being> beingIterator = beings.values().iterator();
-        while (beingIterator.hasNext()) {
-            Being being = beingIterator.next();
-            try {
-                being.experienceTime(physics);
-                switch (being.getPhase()) {
-                    case BIRTH:
-                        log.info("Birth of " + being);
-                        for (Listener listener : listeners) {
-                            listener.beingBorn(being);
-                        }
-                        break;
-                    case UNDEATH:
-                        rebornBeings.add(being);
-                        beingIterator.remove();
-                        break;
-                    case DEATH:
-                        log.info("Death of " + being);
-                        beingIterator.remove();
-                        for (Listener listener : listeners) {
-                            listener.beingDied(being);
-                        }
-                        break;
+        for (int walk = 0; walk < ticking.size(); walk++) {
+            ticking.get(walk).checkSleep();
+        }
+        if (workers == null) {
+            for (int walk = 0; walk < ticking.size(); walk++) {
+                try {
+                    ticking.get(walk).experienceTime(physics); // life and then physics, one being after the other
+                }
+                catch (Exception e) {
+                    failures[walk] = e;
                 }
             }
-            catch (Exception e) {
-                log.warn("Boom!", e);
+        }
+        else {
+            for (int walk = 0; walk < ticking.size(); walk++) {
+                water.watchDrinking(walk); // the physics of earlier beings must not feel what this one drinks
+                try {
+                    ticking.get(walk).experienceLife(physics);
+                }
+                catch (Exception e) {
+                    failures[walk] = e;
+                }
+            }
+            try {
+                experiencePhysicsInParallel(duration);
+            }
+            finally {
+                water.forgetDrinking();
+            }
+        }
+        for (int walk = 0; walk < ticking.size(); walk++) { // the barrier, in the same order as always
+            Being being = ticking.get(walk);
+            if (failures[walk] != null) {
+                log.warn("Boom!", failures[walk]);
                 deadBeings.add(being);
-                beingIterator.remove();
+                removeBeing(being);
+                continue;
+            }
+            switch (being.getPhase()) {
+                case BIRTH:
+                    log.info("Birth of " + being);
+                    for (Listener listener : listeners) {
+                        listener.beingBorn(being);
+                    }
+                    break;
+                case UNDEATH:
+                    rebornBeings.add(being);
+                    removeBeing(being);
+                    break;
+                case DEATH:
+                    log.info("Death of " + being);
+                    removeBeing(being);
+                    for (Listener listener : listeners) {
+                        listener.beingDied(being);
+                    }
+                    break;
             }
         }
         if (!rebornBeings.isEmpty()) {
@@ -227,6 +347,132 @@ public class World {
             }
             rebornBeings.clear();
         }
+        refreshTicking();
+        sleepingCount = awakeCount = 0;
+        for (int walk = 0; walk < ticking.size(); walk++) {
+            if (ticking.get(walk).getBody().isAsleep()) {
+                sleepingCount++;
+            }
+            else {
+                awakeCount++;
+            }
+        }
+    }
+
+    /**
+     * The beings in the order of their names, kept in a list which is only rebuilt when beings come or go,
+     * so that an ordinary tick doesn't create any garbage.
+     */
+
+    private void refreshTicking() {
+        if (beingsChanged) {
+            ticking.clear();
+            ticking.addAll(beings.values());
+            beingsChanged = false;
+        }
+        if (failures.length < ticking.size()) {
+            failures = new Exception[ticking.size() * 2];
+        }
+        else {
+            Arrays.fill(failures, null);
+        }
+    }
+
+    /**
+     * Spread the physics of the beings over a number of threads, each with its own physics.  The decisions
+     * of the beings are still made one at a time in order, the physics of each being feels the water as that
+     * being left it, and births and deaths are dealt with afterwards in the same order, so the outcome is the
+     * same as with one thread.
+     *
+     * @param threads how many, and one means do it all in the calling thread
+     */
+
+    public void setParallelism(int threads) {
+        if (workers != null) {
+            workers.shutdown();
+            workers = null;
+            workerPhysics.clear();
+            workerConstraints.clear();
+            workerTasks.clear();
+        }
+        if (threads > 1) {
+            workers = new Crew(threads, "World");
+            for (int walk = 0; walk < threads; walk++) {
+                workerConstraints.add(new SphericalPhysics((SphericalPhysics) constraints));
+                workerPhysics.add(createPhysics(isPackedPhysics(), workerConstraints.get(walk)));
+                final int worker = walk;
+                workerTasks.add(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        Fabric.PhysicsTransformation physics = workerPhysics.get(worker);
+                        int index;
+                        while ((index = nextBeing.getAndIncrement()) < ticking.size()) {
+                            if (failures[index] == null) {
+                                try {
+                                    workerConstraints.get(worker).setOrder(index);
+                                    ticking.get(index).experiencePhysics(physics);
+                                }
+                                catch (Exception e) {
+                                    failures[index] = e;
+                                }
+                            }
+                        }
+                        return null;
+                    }
+                });
+            }
+        }
+    }
+
+    public int getParallelism() {
+        return workers == null ? 1 : workerPhysics.size();
+    }
+
+    /**
+     * Let the bodies of beings fall asleep when they have been still for a while, so that the physics
+     * doesn't have to integrate them.  They wake up when disturbed.
+     *
+     * @param speed the mean squared joint speed below which a body counts as still
+     * @param ticks how long a body must be still before it sleeps, zero to keep everybody awake
+     */
+
+    public void setQuiescence(double speed, int ticks) {
+        this.quiescentSpeed = speed;
+        this.quiescentTicks = ticks;
+        for (Being being : beings.values()) {
+            being.getBody().setQuiescence(speed, ticks);
+        }
+    }
+
+    public int getSleepingCount() {
+        return sleepingCount;
+    }
+
+    public int getAwakeCount() {
+        return awakeCount;
+    }
+
+    private void experiencePhysicsInParallel(int duration) {
+        for (int walk = 0; walk < workerPhysics.size(); walk++) {
+            workerPhysics.get(walk).setIterations(duration);
+        }
+        nextBeing.set(0);
+        try {
+            workers.run(workerTasks);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException("Unable to run physics", e.getCause());
+        }
+    }
+
+    private static int checkFrequency(int frequency) {
+        if (frequency < 1 || frequency > Constants.MAX_FREQUENCY) {
+            throw new RuntimeException("Frequency " + frequency + " is not between 1 and " + Constants.MAX_FREQUENCY);
+        }
+        return frequency;
+    }
+
+    private static Fabric.PhysicsTransformation createPhysics(boolean packed, Physics.Constraints constraints) {
+        return packed ? new PackedPhysics(constraints) : new Physics(constraints);
     }
 
     public SphericalPhysics getSphericalPhysics() {
@@ -237,10 +483,40 @@ public class World {
         return beings.values();
     }
 
-    public Physics getPhysics() {
+    public Fabric.PhysicsTransformation getPhysics() {
         return physics;
     }
 
+    /**
+     * Choose between the ordinary physics and the one which packs the joints into arrays
+     *
+     * @param packed true if the packed engine should be used
+     */
+
+    public void setPackedPhysics(boolean packed) {
+        int iterations = physics.getIterations();
+        physics = createPhysics(packed, constraints);
+        physics.setIterations(iterations);
+        for (int walk = 0; walk < workerPhysics.size(); walk++) {
+            workerPhysics.set(walk, createPhysics(packed, workerConstraints.get(walk)));
+        }
+    }
+
+    /**
+     * Make a physics just like the one of this world, but with its own copy of the constraints, so that
+     * it can be used on another thread
+     *
+     * @return the new physics
+     */
+
+    public Fabric.PhysicsTransformation createPhysics() {
+        return createPhysics(isPackedPhysics(), new SphericalPhysics((SphericalPhysics) constraints));
+    }
+
+    public boolean isPackedPhysics() {
+        return physics instanceof PackedPhysics;
+    }
+
     public Noise getNoise() {
         return noise;
     }
@@ -253,10 +529,22 @@ public class World {
         return surfacePatches;
     }
 
+    public Water getWater() {
+        return water;
+    }
+
+    public SurfaceLevel getSurface() {
+        return surface;
+    }
+
     public Being createBeing(Arrow location, Arrow gaze, String bodyName) {
         return putBeing(beingFactory.create(bodyName), location, gaze);
     }
 
+    public Being createBeing(Arrow location, Arrow gaze, String id, String bodyName) {
+        return putBeing(beingFactory.create(id, bodyName), location, gaze);
+    }
+
     public Being createBeing(Embryo embryo, Arrow location, Arrow gaze) {
         return putBeing(beingFactory.create(embryo), location, gaze);
     }
@@ -269,11 +557,31 @@ public class World {
             being.getShield().addTransformation(relocator);
             being.getShield().executeTransformations(null);
         }
-        beings.put(being.toString(), being);
+        being.getBody().setQuiescence(quiescentSpeed, quiescentTicks);
+        putBeing(being);
         log.info("Being created: " + being);
         return being;
     }
 
+    private void putBeing(Being being) {
+        Being previous = beings.put(being.toString(), being);
+        beingsChanged = true;
+        if (beingIndex != null) {
+            if (previous != null) {
+                beingIndex.remove(previous);
+            }
+            beingIndex.add(being);
+        }
+    }
+
+    private void removeBeing(Being being) {
+        beings.remove(being.toString());
+        beingsChanged = true;
+        if (beingIndex != null) {
+            beingIndex.remove(being);
+        }
+    }
+
     private Relocator createRelocator(Being being, Arrow location, Arrow gaze) {
         Arrow x = new Arrow(gaze).scale(-1);
         Arrow center = new Arrow(location);
@@ -291,36 +599,31 @@ public class World {
     }
 
     public void add(Being being) {
-        beings.put(being.toString(), being);
+        being.getBody().setQuiescence(quiescentSpeed, quiescentTicks);
+        putBeing(being);
     }
 
     private void patchLife() {
-        float totalWater = 0f;
-        for (SurfacePatch patch : surfacePatches) {
-            totalWater += patch.prepare();
-        }
+        float totalWater = water.flow(workers);
         if (Math.abs(totalWaterLastTime - totalWater) > 10) {
-            log.info("Total water: " + totalWater);
+            if (log.isDebugEnabled()) {
+                log.debug("Total water: " + totalWater);
+            }
             totalWaterLastTime = totalWater;
         }
-        for (SurfacePatch patch : surfacePatches) {
-            patch.distribute();
-        }
         double totalEnergy = 0;
-        for (Being being : beings.values()) {
-            totalEnergy += being.getEnergy().getAmount();
+        for (int walk = 0; walk < ticking.size(); walk++) {
+            totalEnergy += ticking.get(walk).getEnergy().getAmount();
         }
         double averageEnergy = totalEnergy / beings.size();
         if (averageEnergy < 0.5) {
             double averageAmount = 2.0 / Constants.RAIN_LOCATIONS;
             for (int walk = 0; walk < Constants.RAIN_LOCATIONS; walk++) {
                 int index = noise.choose(surfacePatches.size());
-                surfacePatches.get(index).rain(averageAmount * noise.nextDouble());
+                water.rain(index, averageAmount * noise.nextDouble());
             }
         }
-        for (SurfacePatch patch : surfacePatches) {
-            patch.commit();
-        }
+        water.commit();
     }
 
     private class OutsideImpl implements Being.Outside {
@@ -331,7 +634,14 @@ public class World {
 
         @Override
         public SurfacePatch getNearestPatch(Arrow location) {
-            return SurfacePatch.fetchPatch(location, surfacePatches);
+            return surfaceIndex.fetchPatch(location);
+        }
+
+        @Override
+        public void beingMoved(Being being) {
+            if (beingIndex != null) {
+                beingIndex.moved(being);
+            }
         }
     }
 }
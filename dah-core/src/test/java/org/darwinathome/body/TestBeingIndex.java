@@ -0,0 +1,129 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+package org.darwinathome.body;
+
+import org.darwinathome.Constants;
+import org.darwinathome.genetics.Genome;
+import org.darwinathome.genetics.Noise;
+import org.darwinathome.genetics.impl.PseudoNoise;
+import org.darwinathome.geometry.math.Arrow;
+import org.darwinathome.universe.World;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Make sure the nearest beings found by the world are the ones a walk through all of them would find
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class TestBeingIndex {
+    private static final byte[] SEED_BYTES = {16, 15, 14, 13, 12, 11, 10, 9, 8, 7, 6, 5, 4, 3, 2, 1};
+    private static final int BEING_COUNT = 60;
+
+    @Test
+    public void nearestAndWithin() {
+        World world = new IndexedWorld(new PseudoNoise(new PseudoNoise.ClonableSeed(SEED_BYTES, 0)));
+        Random random = new Random(5678);
+        assertNull(world.getNearestBeing(new Arrow(1, 0, 0), null));
+        for (int walk = 0; walk < BEING_COUNT; walk++) {
+            Arrow location = randomDirection(random).setSpan(Constants.ROAM_RADIUS);
+            Arrow gaze = randomDirection(random);
+            gaze.sub(location, location.dot(gaze) / location.quadrance()).normalize();
+            Embryo embryo = new Embryo("IDX" + walk, "Index", new Speech("Index"), new Genome(world.getNoise()), null);
+            world.createBeing(embryo, location, gaze);
+            if (walk == BEING_COUNT / 2) {
+                world.experienceTime(1);
+                check(world, random);
+            }
+        }
+        for (int walk = 0; walk < 20; walk++) {
+            world.experienceTime(1);
+        }
+        check(world, random);
+    }
+
+    @Test
+    public void foundBeforeFirstTick() { // without a body center yet, as a walk comparing dot products saw them
+        World world = new IndexedWorld(new PseudoNoise(new PseudoNoise.ClonableSeed(SEED_BYTES, 0)));
+        Random random = new Random(8765);
+        for (int walk = 0; walk < BEING_COUNT; walk++) {
+            Arrow location = randomDirection(random).setSpan(Constants.ROAM_RADIUS);
+            Arrow gaze = randomDirection(random);
+            gaze.sub(location, location.dot(gaze) / location.quadrance()).normalize();
+            Embryo embryo = new Embryo("NEW" + walk, "Index", new Speech("Index"), new Genome(world.getNoise()), null);
+            Being being = world.createBeing(embryo, location, gaze);
+            if (walk == 0) {
+                assertEquals("only being", being, world.getNearestBeing(location, null));
+                assertEquals("only being from nowhere", being, world.getNearestBeing(new Arrow(), null));
+            }
+            if (walk == BEING_COUNT / 3) {
+                world.experienceTime(1);
+            }
+            if (walk % 10 == 9) {
+                check(world, random);
+            }
+        }
+    }
+
+    private void check(World world, Random random) {
+        for (int walk = 0; walk < 300; walk++) {
+            Arrow direction = walk == 0 ? new Arrow() : randomDirection(random).scale(1 + random.nextDouble() * 1000);
+            Being avoid = walk % 2 == 0 ? null : world.getNearestBeing(direction, null);
+            List<Being> all = sortedBeings(world, direction, avoid);
+            assertEquals("nearest", all.isEmpty() ? null : all.get(0), world.getNearestBeing(direction, avoid));
+            assertEquals("nearest five", all.subList(0, Math.min(5, all.size())), world.getNearestBeings(direction, 5, avoid));
+            for (double distance : new double[]{20, 150, 600, 3000}) {
+                List<Being> within = new ArrayList<Being>();
+                for (Being being : all) {
+                    if (cosine(direction, being) >= Math.cos(Math.min(Math.PI, distance / Constants.SURFACE_RADIUS))) {
+                        within.add(being);
+                    }
+                }
+                assertEquals("within " + distance, within, world.getBeingsWithin(direction, distance, avoid));
+            }
+        }
+    }
+
+    private static List<Being> sortedBeings(World world, final Arrow direction, Being avoid) {
+        List<Being> beings = new ArrayList<Being>(world.getBeings());
+        beings.remove(avoid);
+        Collections.sort(beings, new Comparator<Being>() {
+            public int compare(Being a, Being b) {
+                int comparison = Double.compare(cosine(direction, b), cosine(direction, a));
+                return comparison != 0 ? comparison : a.toString().compareTo(b.toString());
+            }
+        });
+        return beings;
+    }
+
+    private static double cosine(Arrow direction, Being being) {
+        Arrow bodyCenter = being.getGeometry().getBodyCenter();
+        if (direction.quadrance() == 0 || bodyCenter.quadrance() == 0) {
+            return 0; // like a dot product with nothing
+        }
+        return direction.dot(bodyCenter) / direction.span() / bodyCenter.span();
+    }
+
+    private static Arrow randomDirection(Random random) {
+        return new Arrow(random.nextGaussian(), random.nextGaussian(), random.nextGaussian()).setSpan(1);
+    }
+
+    private class IndexedWorld extends World {
+        public IndexedWorld(Noise noise) {
+            super(noise);
+        }
+    }
+}
@@ -8,6 +8,7 @@ package org.darwinathome.body;
 
 import org.apache.log4j.Logger;
 import org.darwinathome.Constants;
+import org.darwinathome.genetics.Genome;
 import org.darwinathome.genetics.Noise;
 import org.darwinathome.genetics.impl.PseudoNoise;
 import org.darwinathome.geometry.math.Arrow;
@@ -19,9 +20,16 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Make sure beings are marshalled properly
@@ -34,6 +42,18 @@ public class TestParallelUniverse {
             (byte) 0x8A, (byte) 0x98, (byte) 0xAF, (byte) 0x9B, (byte) 0x63, (byte) 0xBB, (byte) 0x98, (byte) 0x31,
             (byte) 0x62, (byte) 0x11, (byte) 0x3A, (byte) 0x71, (byte) 0x7F, (byte) 0x7E, (byte) 0x45, (byte) 0xAE
     };
+    private static final int GROWING_TICKS = 12000;
+    private static final int MEASURED_TICKS = 5000;
+    // a being that faces a new direction grows a movement gene, a byte at a time as it reads it, and every
+    // hour each being adds a point to its trail.  That is what it remembers, and nothing else in a tick allocates.
+    private static final long BYTES_PER_RECORDING = 1024;
+    // run with -Xint and the other ticks allocate nothing at all, but compiled, a handful of them allocate a few
+    // hundred bytes when the compiler gives up code for a path it hadn't seen.  That is far less over all of the
+    // measured ticks than a single small object would be if every tick made one.
+    private static final long COMPILER_BYTES = MEASURED_TICKS;
+    private static final int PARALLELISM = 2;
+    private static final int SLEEPING_TICKS = 15000;
+    private static final int REPLAYED_TICKS = 3000;
     private static final Logger LOG = Logger.getLogger(TestParallelUniverse.class);
 
     @Test
@@ -49,6 +69,23 @@ public class TestParallelUniverse {
         }
     }
 
+    @Test
+    public void countedSeed() {
+        Noise noise0 = new PseudoNoise(new PseudoNoise.ClonableSeed(SEED_BYTES, 0));
+        for (int walk = 0; walk < 1000; walk++) {
+            noise0.nextDouble();
+        }
+        Noise noise1 = new PseudoNoise(new PseudoNoise.ClonableSeed(SEED_BYTES, 1000));
+        Noise noise2 = new PseudoNoise(noise0.copySeed().copy());
+        for (int walk = 0; walk < 1000; walk++) {
+            double next = noise0.nextDouble();
+            assertEquals("counted seed at " + walk, next, noise1.nextDouble(), 0);
+            assertEquals("state seed at " + walk, next, noise2.nextDouble(), 0);
+        }
+        PseudoNoise.ClonableSeed seed = (PseudoNoise.ClonableSeed) noise2.copySeed();
+        assertEquals("count", 2000, seed.count);
+    }
+
     @Test
     public void parallelUniverses() throws Exception {
         for (int count = 1000; count < 30000; count += 1000) {
@@ -106,6 +143,235 @@ public class TestParallelUniverse {
         }
     }
 
+    @Test
+    public void threadedUniverse() throws Exception {
+        Arrow[] locations = new Arrow[5];
+        for (int walk = 0; walk < locations.length; walk++) {
+            locations[walk] = new Arrow(1, walk, 3);
+        }
+        compareThreaded(locations, 3000);
+    }
+
+    @Test
+    public void crowdedThreadedUniverse() throws Exception { // close enough to drink from each other's patches
+        Arrow[] locations = new Arrow[9];
+        for (int walk = 0; walk < locations.length; walk++) {
+            locations[walk] = new Arrow(1 + 0.004 * (walk % 3), 1 + 0.004 * (walk / 3), 1);
+        }
+        World universe = compareThreaded(locations, 9000);
+        assertTrue("adults drinking", countAdults(universe) > 1);
+    }
+
+    @Test
+    public void packedUniverse() throws Exception { // the packed physics must come out bit for bit the same
+        Arrow[] locations = new Arrow[5];
+        for (int walk = 0; walk < locations.length; walk++) {
+            locations[walk] = new Arrow(1, walk, 3);
+        }
+        World universe1 = new ParallelUniverse(new PseudoNoise(new PseudoNoise.ClonableSeed(SEED_BYTES, 0)));
+        universe1.setPackedPhysics(true);
+        World universe = compare(universe1, locations, 9000);
+        assertTrue("adults walking", countAdults(universe) > 0);
+    }
+
+    @Test
+    public void sleepersRestored() throws Exception { // as a world read back after a crash has to replay
+        World universe0 = new ParallelUniverse(new PseudoNoise(new PseudoNoise.ClonableSeed(SEED_BYTES, 0)));
+        universe0.setQuiescence(Constants.QUIESCENT_SPEED, Constants.QUIESCENT_TICKS);
+        for (int walk = 0; walk < 4; walk++) {
+            Arrow location = new Arrow(1, walk, 3);
+            location.setSpan(Constants.ROAM_RADIUS);
+            Arrow gaze = new Arrow(0, 0, 1);
+            gaze.sub(location, location.dot(gaze) / location.quadrance()).normalize();
+            Embryo embryo = new Embryo("GMB" + walk, "Gumby", new Speech("Gumby"), new Genome(universe0.getNoise()), null);
+            universe0.createBeing(embryo, location, gaze);
+        }
+        for (int walk = 0; walk < SLEEPING_TICKS && universe0.getSleepingCount() < 2; walk++) {
+            universe0.experienceTime(1);
+        }
+        assertTrue("sleepers", universe0.getSleepingCount() >= 2);
+        World universe1 = World.read(
+                new DataInputStream(new ByteArrayInputStream(write(universe0))),
+                new PseudoNoise(universe0.getNoise().copySeed())
+        );
+        universe1.setQuiescence(Constants.QUIESCENT_SPEED, Constants.QUIESCENT_TICKS);
+        for (int walk = 0; walk < REPLAYED_TICKS; walk++) {
+            universe0.experienceTime(1);
+            universe1.experienceTime(1);
+            assertEquals("sleepers at " + walk, universe0.getSleepingCount(), universe1.getSleepingCount());
+            if (walk % 100 == 0) {
+                assertTrue("world at " + walk, Arrays.equals(write(universe0), write(universe1)));
+            }
+        }
+    }
+
+    private static byte[] write(World universe) throws IOException {
+        for (Being being : universe.getBeings()) {
+            being.getBody().executeTransformations(null);
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        universe.write(new DataOutputStream(bos));
+        return bos.toByteArray();
+    }
+
+    private World compareThreaded(Arrow[] locations, int ticks) {
+        World universe1 = new ParallelUniverse(new PseudoNoise(new PseudoNoise.ClonableSeed(SEED_BYTES, 0)));
+        universe1.setParallelism(3);
+        try {
+            return compare(universe1, locations, ticks);
+        }
+        finally {
+            universe1.setParallelism(1);
+        }
+    }
+
+    private World compare(World universe1, Arrow[] locations, int ticks) {
+        World universe0 = new ParallelUniverse(new PseudoNoise(new PseudoNoise.ClonableSeed(SEED_BYTES, 0)));
+        for (int walk = 0; walk < locations.length; walk++) {
+            Arrow location = locations[walk];
+            location.setSpan(Constants.ROAM_RADIUS);
+            Arrow gaze = new Arrow(0, 0, 1);
+            gaze.sub(location, location.dot(gaze) / location.quadrance()).normalize();
+            for (World universe : new World[]{universe0, universe1}) {
+                Embryo embryo = new Embryo("GMB" + walk, "Gumby", new Speech("Gumby"), new Genome(universe.getNoise()), null);
+                universe.createBeing(embryo, location, gaze);
+            }
+        }
+        for (int walk = 0; walk < ticks; walk++) {
+            universe0.experienceTime(1);
+            universe1.experienceTime(1);
+        }
+        assertEquals("being count", universe0.getBeings().size(), universe1.getBeings().size());
+        Iterator<Being> beings1 = universe1.getBeings().iterator();
+        for (Being being0 : universe0.getBeings()) {
+            Being being1 = beings1.next();
+            assertEquals("phase of " + being0, being0.getPhase(), being1.getPhase());
+            Iterator<Joint> joints1 = being1.getBody().getJoints().iterator();
+            for (Joint joint0 : being0.getBody().getJoints()) {
+                Joint joint1 = joints1.next();
+                assertEquals("Locations unequal " + being0, joint0.getLocation(), joint1.getLocation());
+                assertEquals("Velocities unequal " + being0, joint0.getVelocity(), joint1.getVelocity());
+            }
+        }
+        return universe0;
+    }
+
+    private static int countAdults(World universe) {
+        int adults = 0;
+        for (Being being : universe.getBeings()) {
+            if (being.getPhase() == Being.Phase.ADULT_LIFE) {
+                adults++;
+            }
+        }
+        return adults;
+    }
+
+    @Test
+    public void adultTickAllocation() throws Exception {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            LOG.warn("Cannot measure allocation on this virtual machine");
+            return;
+        }
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        if (!allocationBean.isThreadAllocatedMemorySupported() || !allocationBean.isThreadAllocatedMemoryEnabled()) {
+            LOG.warn("Thread allocation measurement is not enabled");
+            return;
+        }
+        measureAdultTicks(allocationBean, false, 1, false);
+        measureAdultTicks(allocationBean, true, 1, false);
+        measureAdultTicks(allocationBean, true, 1, true);
+        measureAdultTicks(allocationBean, true, PARALLELISM, true);
+    }
+
+    private void measureAdultTicks(com.sun.management.ThreadMXBean allocationBean, boolean packed, int parallelism, boolean quiescent) {
+        String mode = (packed ? "packed" : "plain") + " x" + parallelism + (quiescent ? " quiescent" : "");
+        World universe = new ParallelUniverse(new PseudoNoise(new PseudoNoise.ClonableSeed(SEED_BYTES, 0)));
+        universe.setPackedPhysics(packed);
+        universe.setParallelism(parallelism);
+        if (quiescent) {
+            universe.setQuiescence(Constants.QUIESCENT_SPEED, Constants.QUIESCENT_TICKS);
+        }
+        for (int walk = 0; walk < 4; walk++) {
+            Arrow location = new Arrow(1, walk, 3);
+            location.setSpan(Constants.ROAM_RADIUS);
+            Arrow gaze = new Arrow(0, 0, 1);
+            gaze.sub(location, location.dot(gaze) / location.quadrance()).normalize();
+            Embryo embryo = new Embryo("GMB" + walk, "Gumby", new Speech("Gumby"), new Genome(universe.getNoise()), null);
+            universe.createBeing(embryo, location, gaze);
+        }
+        for (int walk = 0; walk < GROWING_TICKS; walk++) {
+            universe.experienceTime(1);
+        }
+        assertEquals(mode + " adults before measuring", 4, countAdults(universe));
+        List<Being> beings = new ArrayList<Being>(universe.getBeings());
+        int[] genes = new int[beings.size()];
+        Arrow[] trailEnds = new Arrow[beings.size()];
+        long[] threadIds = tickingThreadIds();
+        int recordingTicks = 0;
+        long compilerBytes = 0;
+        long measuring = Long.MAX_VALUE; // what asking costs, at its least, since it may itself be caught compiling
+        for (int walk = 0; walk < 10; walk++) {
+            long before = allocated(allocationBean, threadIds);
+            measuring = Math.min(measuring, allocated(allocationBean, threadIds) - before);
+        }
+        for (int walk = 0; walk < MEASURED_TICKS; walk++) { // every tick, patch life included
+            for (int being = 0; being < beings.size(); being++) {
+                genes[being] = beings.get(being).getGenome().size();
+                trailEnds[being] = beings.get(being).getTrail().getLast();
+            }
+            long before = allocated(allocationBean, threadIds);
+            universe.experienceTime(1);
+            long bytes = allocated(allocationBean, threadIds) - before - measuring;
+            int recordings = 0;
+            for (int being = 0; being < beings.size(); being++) {
+                if (beings.get(being).getGenome().size() != genes[being]) {
+                    recordings++;
+                }
+                if (beings.get(being).getTrail().getLast() != trailEnds[being]) {
+                    recordings++;
+                }
+            }
+            if (recordings > 0) {
+                recordingTicks++;
+                assertTrue(
+                        mode + " allocated " + bytes + " bytes at age " + universe.getAge() + " with " + recordings + " recordings",
+                        bytes <= recordings * BYTES_PER_RECORDING
+                );
+            }
+            else {
+                compilerBytes += bytes;
+            }
+        }
+        assertTrue(mode + " allocated " + compilerBytes + " bytes without recording anything", compilerBytes <= COMPILER_BYTES);
+        universe.setParallelism(1);
+        assertEquals(mode + " adults after measuring", 4, countAdults(universe));
+        LOG.info(mode + " allocated " + compilerBytes + " bytes, except in " + recordingTicks + " ticks where a being recorded something");
+    }
+
+    private static long[] tickingThreadIds() {
+        List<Long> ids = new ArrayList<Long>();
+        ids.add(Thread.currentThread().getId());
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("World-")) {
+                ids.add(thread.getId());
+            }
+        }
+        long[] threadIds = new long[ids.size()];
+        for (int walk = 0; walk < threadIds.length; walk++) {
+            threadIds[walk] = ids.get(walk);
+        }
+        return threadIds;
+    }
+
+    private static long allocated(com.sun.management.ThreadMXBean allocationBean, long[] threadIds) {
+        long sum = 0;
+        for (long threadId : threadIds) {
+            sum += allocationBean.getThreadAllocatedBytes(threadId);
+        }
+        return sum;
+    }
+
     private class ParallelUniverse extends World {
         public ParallelUniverse(Noise noise) {
             super(noise);
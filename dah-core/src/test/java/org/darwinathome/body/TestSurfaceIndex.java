@@ -0,0 +1,70 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+package org.darwinathome.body;
+
+import org.darwinathome.genetics.impl.PseudoNoise;
+import org.darwinathome.geometry.math.Arrow;
+import org.darwinathome.universe.SurfaceIndex;
+import org.darwinathome.universe.SurfacePatch;
+import org.darwinathome.universe.Water;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertSame;
+
+/**
+ * Make sure the surface index finds the same patch as the full scan
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class TestSurfaceIndex {
+    private static final byte[] SEED_BYTES = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+    private static List<SurfacePatch> surfacePatches = SurfacePatch.createSurfacePatches(
+            new Water(SurfacePatch.createWater(new PseudoNoise(new PseudoNoise.ClonableSeed(SEED_BYTES, 0))))
+    );
+    private static SurfaceIndex surfaceIndex = new SurfaceIndex(surfacePatches);
+
+    @Test
+    public void randomDirections() {
+        Random random = new Random(1234);
+        for (int walk = 0; walk < 20000; walk++) {
+            Arrow arrow = new Arrow(random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+            arrow.scale(1 + random.nextDouble() * 1000);
+            check(arrow);
+        }
+    }
+
+    @Test
+    public void middlesAndCorners() {
+        for (SurfacePatch surfacePatch : surfacePatches) {
+            check(surfacePatch.getMiddle());
+            for (Arrow corner : surfacePatch.getCorners()) {
+                check(corner); // corners are shared, so these are ties
+            }
+        }
+    }
+
+    @Test
+    public void cubeEdges() {
+        for (int x = -1; x <= 1; x++) {
+            for (int y = -1; y <= 1; y++) {
+                for (int z = -1; z <= 1; z++) {
+                    if (x != 0 || y != 0 || z != 0) {
+                        check(new Arrow(x, y, z));
+                    }
+                }
+            }
+        }
+    }
+
+    private void check(Arrow arrow) {
+        assertSame("patch for " + arrow, SurfacePatch.fetchPatch(arrow, surfacePatches), surfaceIndex.fetchPatch(arrow));
+    }
+}
@@ -0,0 +1,80 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+package org.darwinathome.body;
+
+import org.darwinathome.genetics.impl.PseudoNoise;
+import org.darwinathome.universe.SurfaceLevel;
+import org.darwinathome.universe.SurfacePatch;
+import org.darwinathome.universe.Water;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check the coarser levels of the surface and how their patches are related to the finer ones
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class TestSurfaceLevel {
+    private static final byte[] SEED_BYTES = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+
+    @Test
+    public void levels() {
+        List<SurfaceLevel> levels = createSurface(20).getLevels();
+        int[] frequencies = {1, 5, 10, 20};
+        int[] childCounts = {25, 4, 4};
+        assertEquals(frequencies.length, levels.size());
+        for (int walk = 0; walk < levels.size(); walk++) {
+            SurfaceLevel level = levels.get(walk);
+            assertEquals(frequencies[walk], level.getFrequency());
+            assertEquals(SurfacePatch.getFaceCount(frequencies[walk]), level.getSurfacePatches().size());
+            if (walk == 0) {
+                assertNull(level.getCoarser());
+                continue;
+            }
+            SurfaceLevel coarser = levels.get(walk - 1);
+            assertSame(level, coarser.getFiner());
+            for (SurfacePatch coarsePatch : coarser.getSurfacePatches()) {
+                assertEquals(childCounts[walk - 1], coarser.getChildren(coarsePatch).size());
+            }
+            for (SurfacePatch surfacePatch : level.getSurfacePatches()) {
+                SurfacePatch parent = level.getParent(surfacePatch);
+                assertTrue("parent contains middle", parent.contains(surfacePatch.getMiddle()));
+                assertTrue("parent has child", coarser.getChildren(parent).contains(surfacePatch));
+            }
+        }
+    }
+
+    @Test
+    public void water() {
+        SurfaceLevel surface = createSurface(6);
+        SurfaceLevel coarser = surface.getCoarser();
+        assertEquals(3, coarser.getFrequency());
+        assertEquals(1, coarser.getCoarser().getFrequency());
+        surface.getWater().getLevels()[0] = 5; // counts as full
+        coarser.gatherWater();
+        for (SurfacePatch coarsePatch : coarser.getSurfacePatches()) {
+            float total = 0;
+            List<SurfacePatch> children = coarser.getChildren(coarsePatch);
+            for (SurfacePatch child : children) {
+                total += child.getWaterLevel();
+            }
+            assertEquals(total / children.size(), coarser.getWater().getLevels()[coarsePatch.getIndex()], 1e-6);
+        }
+    }
+
+    private static SurfaceLevel createSurface(int frequency) {
+        PseudoNoise noise = new PseudoNoise(new PseudoNoise.ClonableSeed(SEED_BYTES, 0));
+        return new SurfaceLevel(new Water(SurfacePatch.createWater(noise, frequency)));
+    }
+}
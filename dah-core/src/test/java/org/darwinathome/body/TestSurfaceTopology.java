@@ -0,0 +1,77 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+package org.darwinathome.body;
+
+import org.darwinathome.geometry.math.Arrow;
+import org.darwinathome.universe.SurfaceIndex;
+import org.darwinathome.universe.SurfacePatch;
+import org.darwinathome.universe.SurfaceTopology;
+import org.darwinathome.universe.Water;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Make sure a surface topology that went through a file makes the same patches as one just built
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class TestSurfaceTopology {
+    private static final int FREQUENCY = 6;
+
+    @Test
+    public void mappedFile() throws IOException {
+        SurfaceTopology built = SurfaceTopology.build(FREQUENCY);
+        File file = File.createTempFile("surface", ".topology");
+        try {
+            built.write(file);
+            SurfaceTopology mapped = SurfaceTopology.map(file);
+            assertEquals(FREQUENCY, mapped.getFrequency());
+            List<SurfacePatch> builtPatches = createPatches(built);
+            List<SurfacePatch> mappedPatches = createPatches(mapped);
+            assertEquals(SurfacePatch.getFaceCount(FREQUENCY), mappedPatches.size());
+            for (int walk = 0; walk < builtPatches.size(); walk++) {
+                SurfacePatch builtPatch = builtPatches.get(walk);
+                SurfacePatch mappedPatch = mappedPatches.get(walk);
+                assertEquals(walk, mappedPatch.getIndex());
+                assertExactly(builtPatch.getMiddle(), mappedPatch.getMiddle());
+                for (int corner = 0; corner < 3; corner++) {
+                    assertExactly(builtPatch.getCorners().get(corner), mappedPatch.getCorners().get(corner));
+                    assertEquals(builtPatch.getAdjacent().get(corner).getIndex(), mappedPatch.getAdjacent().get(corner).getIndex());
+                }
+            }
+            SurfaceIndex surfaceIndex = mapped.createSurfaceIndex(mappedPatches);
+            Random random = new Random(4321);
+            for (int walk = 0; walk < 5000; walk++) {
+                Arrow arrow = new Arrow(random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+                SurfacePatch expected = SurfacePatch.fetchPatch(arrow, mappedPatches);
+                assertSame("patch for " + arrow, expected, surfaceIndex.fetchPatch(arrow));
+                assertEquals(expected.contains(arrow), builtPatches.get(expected.getIndex()).contains(arrow));
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    private static void assertExactly(Arrow expected, Arrow actual) {
+        assertEquals(expected.x, actual.x, 0);
+        assertEquals(expected.y, actual.y, 0);
+        assertEquals(expected.z, actual.z, 0);
+    }
+
+    private static List<SurfacePatch> createPatches(SurfaceTopology topology) {
+        return topology.createSurfacePatches(new Water(new float[SurfacePatch.getFaceCount(FREQUENCY)]));
+    }
+}
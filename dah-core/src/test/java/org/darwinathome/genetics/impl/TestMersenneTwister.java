@@ -0,0 +1,82 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+package org.darwinathome.genetics.impl;
+
+import org.junit.Test;
+import org.uncommons.maths.random.MersenneTwisterRNG;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Make sure our twister gives exactly the doubles that MersenneTwisterRNG gives for the same seed,
+ * since the saved seeds were made with that one.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class TestMersenneTwister {
+    private static final int DRAWS = 5000; // more than one twist of the state
+
+    @Test
+    public void negativeBytes() {
+        byte[] seed = new byte[MersenneTwister.SEED_SIZE];
+        for (int walk = 0; walk < seed.length; walk++) {
+            seed[walk] = (byte) (0x80 + walk * 7);
+        }
+        compare(seed);
+    }
+
+    @Test
+    public void extremeBytes() {
+        byte[] seed = new byte[MersenneTwister.SEED_SIZE];
+        compare(seed);
+        for (int walk = 0; walk < seed.length; walk++) {
+            seed[walk] = (byte) 0xFF;
+        }
+        compare(seed);
+        for (int walk = 0; walk < seed.length; walk++) {
+            seed[walk] = (byte) (walk % 2 == 0 ? 0x80 : 0x7F);
+        }
+        compare(seed);
+    }
+
+    @Test
+    public void randomSeeds() {
+        Random random = new Random(1965);
+        byte[] seed = new byte[MersenneTwister.SEED_SIZE];
+        for (int walk = 0; walk < 50; walk++) {
+            random.nextBytes(seed);
+            compare(seed);
+        }
+    }
+
+    @Test
+    public void restoredState() {
+        byte[] seed = new byte[MersenneTwister.SEED_SIZE];
+        new Random(2010).nextBytes(seed);
+        MersenneTwisterRNG oracle = new MersenneTwisterRNG(seed.clone());
+        MersenneTwister twister = new MersenneTwister(seed);
+        for (int walk = 0; walk < 700; walk++) {
+            oracle.nextDouble();
+        }
+        twister.skipDoubles(700);
+        MersenneTwister restored = new MersenneTwister(twister.getState(), twister.getIndex());
+        for (int walk = 0; walk < DRAWS; walk++) {
+            assertEquals("double " + walk + " after restoring", oracle.nextDouble(), restored.nextDouble(), 0);
+        }
+    }
+
+    private static void compare(byte[] seed) {
+        MersenneTwisterRNG oracle = new MersenneTwisterRNG(seed.clone());
+        MersenneTwister twister = new MersenneTwister(seed);
+        for (int walk = 0; walk < DRAWS; walk++) {
+            assertEquals("double " + walk, oracle.nextDouble(), twister.nextDouble(), 0);
+        }
+    }
+}
@@ -18,12 +18,16 @@ import java.util.Map;
 
 /**
  * Carefully marshall and unmarshall fabrics.
+ * <p/>
+ * Whether a fabric is asleep, and how long it has been still, goes along with it, so that a fabric read back
+ * carries on exactly as it would have.  Fablobs from before that are still read, as fabrics that are awake.
  *
  * @author Gerald de Jong <geralddejong@gmail.com>
  */
 
 public class Fablob {
-    private static final int MAGIC = 0xFAB00B1E;
+    private static final int MAGIC = 0xFAB00B1F;
+    private static final int MAGIC_WITHOUT_SLEEP = 0xFAB00B1E;
     private byte[] bytes;
 
     public static Fablob read(DataInputStream dis) throws IOException {
@@ -52,6 +56,7 @@ public class Fablob {
         if (fabric.hasTransformations()) {
             throw new RuntimeException("Cannot create a fablob when transformations are pending");
         }
+        fabric.releaseJoints();
         try {
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
             DataOutputStream out = new DataOutputStream(bos);
@@ -74,10 +79,10 @@ public class Fablob {
             ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
             DataInputStream in = new DataInputStream(bis);
             int magic = in.readInt();
-            if (magic != MAGIC) {
+            if (magic != MAGIC && magic != MAGIC_WITHOUT_SLEEP) {
                 throw new RuntimeException("This is not a fabric!");
             }
-            return unpackFabric(in, factory);
+            return unpackFabric(in, factory, magic == MAGIC);
         }
         catch (IOException e) {
             throw new RuntimeException(e);
@@ -110,6 +115,8 @@ public class Fablob {
     private static void packFabric(Fabric fabric, DataOutputStream out) throws IOException {
         packLong(fabric.age, out);
         packLong(fabric.lastSpanActive, out);
+        packBoolean(fabric.asleep, out);
+        packInt(fabric.quietTicks, out);
         for (Who.Side side : Who.Side.values()) {
             packShort(fabric.whoFactory.id[side.ordinal()], out);
         }
@@ -142,10 +149,14 @@ public class Fablob {
         }
     }
 
-    private static Fabric unpackFabric(DataInputStream in, Thing.Factory thingFactory) throws IOException {
+    private static Fabric unpackFabric(DataInputStream in, Thing.Factory thingFactory, boolean withSleep) throws IOException {
         Fabric fabric = new Fabric(thingFactory);
         fabric.age = unpackLong(in);
         fabric.lastSpanActive = unpackLong(in);
+        if (withSleep) { // before the thing, which may want to know
+            fabric.asleep = unpackBoolean(in);
+            fabric.quietTicks = unpackInt(in);
+        }
         for (Who.Side side : Who.Side.values()) {
             fabric.whoFactory.id[side.ordinal()] = unpackShort(in);
         }
@@ -161,7 +172,7 @@ public class Fablob {
         }
         int intervalCount = unpackShort(in);
         while (intervalCount-- > 0) {
-            fabric.intervals.add(unpackInterval(in, jointMap, thingFactory));
+            fabric.intervals.add(unpackInterval(fabric, in, jointMap, thingFactory, withSleep));
         }
         int faceCount = unpackShort(in);
         while (faceCount-- > 0) {
@@ -208,6 +219,7 @@ public class Fablob {
         packWho(interval.alpha.who, out);
         packWho(interval.omega.who, out);
         packSpan(interval.span, out);
+        packBoolean(interval.span.sleeper != null, out);
         if (interval.thing != null) {
             packBoolean(true, out);
             interval.thing.save(out);
@@ -217,12 +229,15 @@ public class Fablob {
         }
     }
 
-    private static Interval unpackInterval(DataInputStream in, Map<Who, Joint> joints, Thing.Factory thingFactory) throws IOException {
+    private static Interval unpackInterval(Fabric fabric, DataInputStream in, Map<Who, Joint> joints, Thing.Factory thingFactory, boolean withSleep) throws IOException {
         Interval interval = new Interval();
         interval.role = unpackRole(in);
         interval.alpha = joints.get(unpackWho(in));
         interval.omega = joints.get(unpackWho(in));
         interval.span = unpackSpan(in);
+        if (withSleep && unpackBoolean(in)) { // it has slept, so changing the span wakes the fabric
+            interval.span.sleeper = fabric;
+        }
         if (unpackBoolean(in)) {
             interval.thing = thingFactory.restoreExisting(in, interval);
         }
@@ -373,6 +388,14 @@ public class Fablob {
         return in.readShort();
     }
 
+    private static void packInt(int number, DataOutputStream out) throws IOException {
+        out.writeInt(number);
+    }
+
+    private static int unpackInt(DataInputStream in) throws IOException {
+        return in.readInt();
+    }
+
     private static void packDouble(double number, DataOutputStream out) throws IOException {
         out.writeDouble(number);
     }
@@ -8,11 +8,14 @@ package org.darwinathome.geometry.structure;
 import org.darwinathome.geometry.math.Arrow;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 
 /**
  * @author Gerald de Jong <geralddejong@gmail.com>
@@ -23,13 +26,36 @@ public class Fabric {
     long lastSpanActive = -1;
     List<Joint> joints = new ArrayList<Joint>();
     List<Interval> intervals = new ArrayList<Interval>();
+    List<Joint> jointView = Collections.unmodifiableList(joints);
+    List<Interval> intervalView = Collections.unmodifiableList(intervals);
     List<Face> faces = new ArrayList<Face>();
     List<Tetra> tetras = new ArrayList<Tetra>();
     List<Vertebra> vertebras = new ArrayList<Vertebra>();
+    IntervalIndex intervalIndex = new IntervalIndex();
+    JointIncidence<Face> faceIndex = new JointIncidence<Face>() {
+        List<Joint> getJoints(Face face) {
+            return face.joints;
+        }
+    };
+    JointIncidence<Tetra> tetraIndex = new JointIncidence<Tetra>() {
+        List<Joint> getJoints(Tetra tetra) {
+            return tetra.joints;
+        }
+    };
+    JointIncidence<Vertebra> vertebraIndex = new JointIncidence<Vertebra>() {
+        List<Joint> getJoints(Vertebra vertebra) {
+            return vertebra.joints;
+        }
+    };
     Mods modifications = new Mods();
     WhoFactory whoFactory = new WhoFactory();
     Thing thing;
     Thing.Factory factory;
+    PackedPhysics.Packing packing;
+    double quiescentSpeed;
+    int quiescentTicks;
+    int quietTicks;
+    boolean asleep;
 
     public Fabric(Thing.Factory thingFactory) {
         this.factory = thingFactory;
@@ -62,17 +88,19 @@ public class Fabric {
     }
 
     public void getCenter(Arrow center) {
+        syncJoints();
         center.zero();
-        for (Joint joint : joints) {
-            center.add(joint.location);
+        for (int walk = 0; walk < joints.size(); walk++) {
+            center.add(joints.get(walk).location);
         }
         center.scale(1.0 / joints.size());
     }
 
     public double getMaxDistanceFrom(Arrow center) {
+        syncJoints();
         double maxQuadrance = 0;
-        for (Joint joint : joints) {
-            double quadrance = center.quadranceTo(joint.location);
+        for (int walk = 0; walk < joints.size(); walk++) {
+            double quadrance = center.quadranceTo(joints.get(walk).location);
             if (quadrance > maxQuadrance) {
                 maxQuadrance = quadrance;
             }
@@ -81,6 +109,7 @@ public class Fabric {
     }
 
     public double getRadiusFrom(Arrow center) {
+        syncJoints();
         double maxQuadrance = 0;
         for (Joint joint : joints) {
             double quadrance = joint.location.quadranceTo(center);
@@ -107,11 +136,50 @@ public class Fabric {
         return age == lastSpanActive;
     }
 
+    /**
+     * Allow this fabric to fall asleep once it has been still for a while, so that physics passes it by
+     * until something disturbs it.  Its age keeps on counting while it sleeps.
+     *
+     * @param speed the mean squared joint speed below which the fabric counts as still
+     * @param ticks how many ticks it has to be still before sleeping, zero for never
+     */
+
+    public void setQuiescence(double speed, int ticks) {
+        this.quiescentSpeed = speed;
+        this.quiescentTicks = ticks;
+        if (ticks == 0) {
+            wake();
+        }
+    }
+
+    public boolean isAsleep() {
+        return asleep;
+    }
+
+    public void wake() {
+        asleep = false;
+        quietTicks = 0;
+    }
+
     public List<Joint> getJoints() {
+        releaseJoints();
         return joints;
     }
 
+    /**
+     * The joints for looking at only.  Unlike getJoints() this leaves them with the packed physics, which
+     * would otherwise have to load the whole fabric again, so their locations and velocities must not be changed.
+     *
+     * @return the joints, up to date
+     */
+
+    public List<Joint> readJoints() {
+        syncJoints();
+        return jointView;
+    }
+
     public Joint getJoint(Who who) {
+        releaseJoints();
         for (Joint joint : joints) {
             if (joint.who.equals(who)) {
                 return joint;
@@ -121,18 +189,26 @@ public class Fabric {
     }
 
     public List<Interval> getIntervals() {
+        releaseJoints();
         return intervals;
     }
 
+    /**
+     * The intervals for looking at only, leaving them with the packed physics.  Their spans may be changed.
+     *
+     * @return the intervals, up to date
+     */
+
+    public List<Interval> readIntervals() {
+        syncJoints();
+        return intervalView;
+    }
+
     public List<Interval> getIntervals(Joint joint) {
+        releaseJoints();
         List<Interval> found = new ArrayList<Interval>();
-        for (Interval interval : intervals) {
-            if (interval.contains(joint) && interval.isReal()) {
-                found.add(interval);
-            }
-        }
-        for (Interval interval : modifications.intervalMods.add) {
-            if (interval.contains(joint) && interval.isReal()) {
+        for (Interval interval : getIncidentIntervals(joint)) {
+            if (interval.isReal()) {
                 found.add(interval);
             }
         }
@@ -140,13 +216,9 @@ public class Fabric {
     }
 
     public List<Interval> getRealIntervals(Joint jointA, Joint jointB) {
+        releaseJoints();
         List<Interval> found = new ArrayList<Interval>();
-        for (Interval interval : intervals) {
-            if (interval.connects(jointA, jointB) && interval.isReal()) {
-                found.add(interval);
-            }
-        }
-        for (Interval interval : modifications.intervalMods.add) {
+        for (Interval interval : getIncidentIntervals(jointA, jointB)) {
             if (interval.connects(jointA, jointB) && interval.isReal()) {
                 found.add(interval);
             }
@@ -155,16 +227,9 @@ public class Fabric {
     }
 
     public Interval getInterval(Joint jointA, Joint jointB) {
+        releaseJoints();
         Interval found = null;
-        for (Interval interval : intervals) {
-            if (interval.connects(jointA, jointB) && interval.isReal()) {
-                if (found != null) {
-                    throw new RuntimeException("Multiple intervals!");
-                }
-                found = interval;
-            }
-        }
-        for (Interval interval : modifications.intervalMods.add) {
+        for (Interval interval : getIncidentIntervals(jointA, jointB)) {
             if (interval.connects(jointA, jointB) && interval.isReal()) {
                 if (found != null) {
                     throw new RuntimeException("Multiple intervals!");
@@ -175,12 +240,24 @@ public class Fabric {
         return found;
     }
 
+    private List<Interval> getIncidentIntervals(Joint joint) {
+        return intervalIndex.get(joint, intervals, modifications.intervalMods.add);
+    }
+
+    private List<Interval> getIncidentIntervals(Joint jointA, Joint jointB) {
+        List<Interval> alpha = getIncidentIntervals(jointA);
+        List<Interval> omega = getIncidentIntervals(jointB);
+        return alpha.size() <= omega.size() ? alpha : omega;
+    }
+
     public List<Face> getFaces() {
+        releaseJoints();
         return faces;
     }
 
     public List<Face.Pair> getFacePairs() {
-        List<Face> opposites = new ArrayList<Face>();
+        releaseJoints();
+        Set<Face> opposites = Collections.newSetFromMap(new IdentityHashMap<Face, Boolean>());
         List<Face.Pair> pairs = new ArrayList<Face.Pair>();
         for (Face face : faces) {
             if (opposites.contains(face)) {
@@ -221,18 +298,14 @@ public class Fabric {
     }
 
     public List<Face> getFaces(Joint joint) {
-        List<Face> found = new ArrayList<Face>();
-        for (Face face : faces) {
-            if (face.joints.contains(joint)) {
-                found.add(face);
-            }
-        }
-        return found;
+        releaseJoints();
+        return faceIndex.get(joint, faces);
     }
 
     public List<Face> getFaces(Joint jointA, Joint jointB, Joint jointC) {
+        releaseJoints();
         List<Face> found = new ArrayList<Face>();
-        for (Face face : faces) {
+        for (Face face : faceIndex.getShortest(jointA.who, jointB.who, jointC.who, faces)) {
             if (face.contains(jointA) && face.contains(jointB) && face.contains(jointC)) {
                 found.add(face);
             }
@@ -241,8 +314,9 @@ public class Fabric {
     }
 
     public List<Face> getFaces(Who whoA, Who whoB, Who whoC) {
+        releaseJoints();
         List<Face> found = new ArrayList<Face>();
-        for (Face face : faces) {
+        for (Face face : faceIndex.getShortest(whoA, whoB, whoC, faces)) {
             if (face.contains(whoA) && face.contains(whoB) && face.contains(whoC)) {
                 found.add(face);
             }
@@ -251,8 +325,9 @@ public class Fabric {
     }
 
     public List<Face> getFaces(Tetra tetra) {
+        releaseJoints();
         List<Face> found = new ArrayList<Face>();
-        for (Face face : faces) {
+        for (Face face : faceIndex.getAny(tetra.joints, faces)) {
             int match = 0;
             for (Joint joint : tetra.joints) {
                 if (face.joints.contains(joint)) {
@@ -266,6 +341,14 @@ public class Fabric {
         return found;
     }
 
+    public void setJoint(Face face, int index, Joint joint) {
+        boolean indexed = faceIndex.detach(face, faces);
+        face.joints.set(index, joint);
+        if (indexed) {
+            faceIndex.attach(Collections.singletonList(face));
+        }
+    }
+
     public double getArea(Face face) {
         if (face.joints.size() != 3) {
             throw new IllegalStateException("Only works for triangles");
@@ -300,24 +383,22 @@ public class Fabric {
 
 
     public List<Tetra> getTetras() {
+        releaseJoints();
         return tetras;
     }
 
     public List<Tetra> getTetras(Joint joint) {
-        List<Tetra> found = new ArrayList<Tetra>();
-        for (Tetra tetra : tetras) {
-            if (tetra.joints.contains(joint)) {
-                found.add(tetra);
-            }
-        }
-        return found;
+        releaseJoints();
+        return tetraIndex.get(joint, tetras);
     }
 
     public List<Vertebra> getVertebras() {
+        releaseJoints();
         return vertebras;
     }
 
     public Map<Who, Joint.Sheath> createSheathMap() {
+        releaseJoints();
         Map<Who, Joint.Sheath> sheathMap = new HashMap<Who, Joint.Sheath>(joints.size() * 2);
         for (Joint joint : joints) {
             if (joint.who.side != Who.Side.ELIMINATED) {
@@ -349,10 +430,12 @@ public class Fabric {
     }
 
     public void addTransformation(Transformation transformation) {
+        wake();
         modifications.getTransformations().add(transformation);
     }
 
     public Interval createInterval(Joint alpha, Joint omega, Interval.Role role) {
+        releaseJoints();
         Interval interval = new Interval(alpha, omega, role);
         if (interval.role == Interval.Role.TEMPORARY) {
             interval.span.setIdeal(0, 30 + (int)(100 * interval.span.getCurrentIdeal()));
@@ -365,6 +448,7 @@ public class Fabric {
     }
 
     public Joint createJoint(Who who, Arrow location) {
+        releaseJoints();
         Joint joint = new Joint(who, location);
         Thing.Factory thingFactory = getThingFactory();
         if (thingFactory != null) {
@@ -403,6 +487,8 @@ public class Fabric {
 
     public interface PhysicsTransformation extends Transformation {
         void setIterations(int iterations);
+
+        int getIterations();
     }
 
     public interface PeriodicTransformation extends Transformation {
@@ -414,11 +500,27 @@ public class Fabric {
         private ModCollection<Joint> jointMods = new ModCollection<Joint>() {
             @Override
             public void remove(Joint joint) {
+                List<Face> jointFaces = faceIndex.detach(joint, faces);
+                List<Tetra> jointTetras = tetraIndex.detach(joint, tetras);
+                List<Vertebra> jointVertebras = vertebraIndex.detach(joint, vertebras);
                 joint.who = whoFactory.createEliminated();
+                faceIndex.attach(jointFaces);
+                tetraIndex.attach(jointTetras);
+                vertebraIndex.attach(jointVertebras);
                 super.remove(joint);
             }
         };
         private ModCollection<Interval> intervalMods = new ModCollection<Interval>() {
+            @Override
+            void added(Interval interval) {
+                intervalIndex.add(interval);
+            }
+
+            @Override
+            void dropped(Interval interval) {
+                intervalIndex.remove(interval);
+            }
+
             @Override
             public void remove(Interval interval) {
                 interval.role = Interval.Role.ELIMINATED;
@@ -431,9 +533,39 @@ public class Fabric {
                 super.remove(interval);
             }
         };
-        private ModCollection<Face> faceMods = new ModCollection<Face>();
-        private ModCollection<Tetra> tetraMods = new ModCollection<Tetra>();
-        private ModCollection<Vertebra> vertebraMods = new ModCollection<Vertebra>();
+        private ModCollection<Face> faceMods = new ModCollection<Face>() {
+            @Override
+            void committed(Face face) {
+                faceIndex.add(face);
+            }
+
+            @Override
+            void dropped(Face face) {
+                faceIndex.remove(face);
+            }
+        };
+        private ModCollection<Tetra> tetraMods = new ModCollection<Tetra>() {
+            @Override
+            void committed(Tetra tetra) {
+                tetraIndex.add(tetra);
+            }
+
+            @Override
+            void dropped(Tetra tetra) {
+                tetraIndex.remove(tetra);
+            }
+        };
+        private ModCollection<Vertebra> vertebraMods = new ModCollection<Vertebra>() {
+            @Override
+            void committed(Vertebra vertebra) {
+                vertebraIndex.add(vertebra);
+            }
+
+            @Override
+            void dropped(Vertebra vertebra) {
+                vertebraIndex.remove(vertebra);
+            }
+        };
 
         public Queue<Transformation> getTransformations() {
             return transformations;
@@ -466,34 +598,54 @@ public class Fabric {
                 }
             }
             if (physicsTransformation != null) {
-                transformAndModify(physicsTransformation);
+                if (asleep) {
+                    age += physicsTransformation.getIterations();
+                }
+                else {
+                    transformAndModify(physicsTransformation);
+                    observeQuiescence();
+                }
+            }
+        }
+
+        private void observeQuiescence() {
+            if (quiescentTicks == 0) {
+                return;
+            }
+            if (isAnySpanActive() || !transformations.isEmpty() || getMeanSquaredSpeed() > quiescentSpeed) {
+                quietTicks = 0;
+            }
+            else if (++quietTicks >= quiescentTicks) {
+                for (Interval interval : intervals) {
+                    interval.span.sleeper = Fabric.this;
+                }
+                asleep = true;
             }
         }
 
         private void transformAndModify(Transformation transformation) {
+            if (!(transformation instanceof PackedPhysics) || isModified()) {
+                releaseJoints();
+            }
             transformation.transform(Fabric.this);
-            for (Joint removedJoint : jointMods.remove) {
-                for (Interval interval : intervals) {
-                    if (interval.getRole() != Interval.Role.ELIMINATED) {
-                        if (interval.contains(removedJoint)) {
-                            intervalMods.remove(interval);
-                        }
+            if (isModified()) {
+                releaseJoints();
+            }
+            for (int walk = 0; walk < jointMods.remove.size(); walk++) {
+                Joint removedJoint = jointMods.remove.get(walk);
+                for (Interval interval : getIncidentIntervals(removedJoint)) {
+                    if (interval.getRole() != Interval.Role.ELIMINATED && !intervalMods.adding.containsKey(interval)) {
+                        intervalMods.remove(interval);
                     }
                 }
-                for (Face face : faces) {
-                    if (face.joints.contains(removedJoint)) {
-                        faceMods.remove(face);
-                    }
+                for (Face face : faceIndex.get(removedJoint, faces)) {
+                    faceMods.remove(face);
                 }
-                for (Tetra tetra : tetras) {
-                    if (tetra.joints.contains(removedJoint)) {
-                        tetraMods.remove(tetra);
-                    }
+                for (Tetra tetra : tetraIndex.get(removedJoint, tetras)) {
+                    tetraMods.remove(tetra);
                 }
-                for (Vertebra vertebra : vertebras) {
-                    if (vertebra.joints.contains(removedJoint)) {
-                        vertebraMods.remove(vertebra);
-                    }
+                for (Vertebra vertebra : vertebraIndex.get(removedJoint, vertebras)) {
+                    vertebraMods.remove(vertebra);
                 }
             }
             vertebraMods.apply(vertebras);
@@ -503,83 +655,189 @@ public class Fabric {
             jointMods.apply(joints);
         }
 
+        private boolean isModified() {
+            return !(jointMods.isEmpty() && intervalMods.isEmpty() && faceMods.isEmpty() && tetraMods.isEmpty() && vertebraMods.isEmpty());
+        }
+
         @Override
         public String toString() {
             return "Transformations=" + transformations.size();
         }
     }
 
+    /**
+     * Give one interval another joint in place of one of its own
+     *
+     * @param interval which one
+     * @param jointFrom the joint it lets go of
+     * @param jointTo the joint it takes instead
+     * @return true if both of its ends are now the same joint
+     */
+
+    public boolean replace(Interval interval, Joint jointFrom, Joint jointTo) {
+        releaseJoints();
+        boolean collapsed = interval.replace(jointFrom, jointTo);
+        intervalIndex.moved(interval, jointFrom, jointTo);
+        return collapsed;
+    }
+
     public void replace(Joint jointFrom, Joint jointTo) {
-        for (Interval interval : intervals) {
-            if (interval.replace(jointFrom, jointTo)) {
+        releaseJoints();
+        for (Interval interval : new ArrayList<Interval>(getIncidentIntervals(jointFrom))) {
+            boolean collapsed = interval.replace(jointFrom, jointTo);
+            intervalIndex.moved(interval, jointFrom, jointTo);
+            if (collapsed) {
                 modifications.getIntervalMod().remove(interval);
             }
         }
-        for (Interval interval : modifications.intervalMods.add) {
-            if (interval.replace(jointFrom, jointTo)) {
-                modifications.getIntervalMod().remove(interval);
-            }
-        }
-        for (Face face : faces) {
+        List<Face> jointFaces = faceIndex.detach(jointFrom, faces);
+        for (Face face : jointFaces) {
             face.replace(jointFrom, jointTo);
         }
+        faceIndex.attach(jointFaces);
         for (Face face : modifications.faceMods.add) {
             face.replace(jointFrom, jointTo);
         }
-        for (Tetra tetra : tetras) {
+        List<Tetra> jointTetras = tetraIndex.detach(jointFrom, tetras);
+        for (Tetra tetra : jointTetras) {
             tetra.replace(jointFrom, jointTo);
         }
+        tetraIndex.attach(jointTetras);
         for (Tetra tetra : modifications.tetraMods.add) {
             tetra.replace(jointFrom, jointTo);
         }
-        for (Vertebra vertebra : vertebras) {
+        List<Vertebra> jointVertebras = vertebraIndex.detach(jointFrom, vertebras);
+        for (Vertebra vertebra : jointVertebras) {
             vertebra.replace(jointFrom, jointTo);
         }
+        vertebraIndex.attach(jointVertebras);
         for (Vertebra vertebra : modifications.vertebraMods.add) {
             vertebra.replace(jointFrom, jointTo);
         }
     }
 
+    /**
+     * The lists keep the order in which things arrived, and the identity maps beside them answer the
+     * membership questions so that a big batch of changes doesn't become quadratic.
+     */
+
     private class ModCollection<T> implements Mod<T> {
         private List<T> add = new ArrayList<T>();
         private List<T> remove = new ArrayList<T>();
+        private Map<T, Boolean> adding = new IdentityHashMap<T, Boolean>();
+        private Map<T, Boolean> removing = new IdentityHashMap<T, Boolean>();
 
         public boolean isRemoved(T t) {
-            return remove.contains(t);
+            return removing.containsKey(t);
         }
 
         public void add(T t) {
-            if (add.contains(t) || remove.contains(t)) {
+            if (adding.containsKey(t) || removing.containsKey(t)) {
                 throw new RuntimeException();
             }
             add.add(t);
+            adding.put(t, Boolean.TRUE);
+            added(t);
         }
 
         public void remove(T t) {
-            if (add.contains(t)) {
-                add.remove(t);
+            if (adding.remove(t) != null) {
+                for (int walk = add.size() - 1; walk >= 0; walk--) {
+                    if (add.get(walk) == t) {
+                        add.remove(walk);
+                        break;
+                    }
+                }
+                dropped(t);
             }
-            else if (!remove.contains(t)) {
+            else if (!removing.containsKey(t)) {
                 remove.add(t);
+                removing.put(t, Boolean.TRUE);
             }
         }
 
+        public boolean isEmpty() {
+            return add.isEmpty() && remove.isEmpty();
+        }
+
         public void apply(List<T> list) {
             if (!remove.isEmpty()) {
-                list.removeAll(remove);
+                int kept = 0;
+                for (int walk = 0; walk < list.size(); walk++) {
+                    T t = list.get(walk);
+                    if (!removing.containsKey(t)) {
+                        list.set(kept++, t);
+                    }
+                }
+                list.subList(kept, list.size()).clear();
+                for (T t : remove) {
+                    dropped(t);
+                }
                 remove.clear();
+                removing.clear();
             }
             if (!add.isEmpty()) {
                 list.addAll(add);
+                for (T t : add) {
+                    committed(t);
+                }
                 add.clear();
+                adding.clear();
             }
         }
 
+        void added(T t) {
+        }
+
+        void committed(T t) {
+        }
+
+        void dropped(T t) {
+        }
+
         public String toString() {
             return "add=" + add.size() + ", remove=" + remove.size();
         }
     }
 
+    private double getMeanSquaredSpeed() {
+        if (packing != null && packing.loaded) {
+            return packing.getMeanSquaredSpeed();
+        }
+        double sum = 0;
+        int count = 0;
+        for (Joint joint : joints) {
+            switch (joint.who.side) {
+                case ELIMINATED:
+                case TEMPORARY:
+                    continue;
+            }
+            sum += joint.velocity.quadrance();
+            count++;
+        }
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * Bring the joints up to date with the packed physics, if it has been running on this fabric
+     */
+
+    void syncJoints() {
+        if (packing != null) {
+            packing.sync();
+        }
+    }
+
+    /**
+     * Bring the joints up to date and let the packed physics forget them, since the structure may change
+     */
+
+    void releaseJoints() {
+        if (packing != null && packing.loaded) {
+            packing.release();
+        }
+    }
+
     private static class JointSheath implements Joint.Sheath {
         Joint joint;
         List<Interval> intervalList = new ArrayList<Interval>();
@@ -44,6 +44,7 @@ public class Interval {
     Span span;
     Arrow unit;
     Thing thing;
+    int order;
 
     Interval() {
     }
@@ -118,7 +119,7 @@ public class Interval {
                 omega.who.side != Who.Side.ELIMINATED;
     }
 
-    public boolean replace(Joint from, Joint to) {
+    boolean replace(Joint from, Joint to) { // through the fabric, which keeps its index of intervals by joint
         if (role != Role.ELIMINATED) {
             if (from == alpha) {
                 if (to == omega) {
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package org.darwinathome.geometry.structure;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remember which intervals are attached to each joint of a fabric, both the ones in the fabric and the ones
+ * waiting to be added, so that finding them doesn't mean walking the whole fabric.  Each joint's intervals
+ * are kept in the order that a walk through the fabric would find them.
+ * <p/>
+ * Intervals only change their joints through the fabric, so the index only has to be built again when
+ * something was added to or removed from the list directly, which shows up as a different count.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+class IntervalIndex {
+    private Map<Joint, List<Interval>> map = new IdentityHashMap<Joint, List<Interval>>();
+    private boolean valid;
+    private int count;
+    private int nextOrder;
+
+    List<Interval> get(Joint joint, List<Interval> intervals, List<Interval> pending) {
+        if (!valid || count != intervals.size() + pending.size()) {
+            rebuild(intervals, pending);
+        }
+        List<Interval> found = map.get(joint);
+        if (found == null) {
+            return Collections.emptyList();
+        }
+        return found;
+    }
+
+    void add(Interval interval) {
+        interval.order = nextOrder++;
+        insert(interval.alpha, interval);
+        if (interval.omega != interval.alpha) {
+            insert(interval.omega, interval);
+        }
+        count++;
+    }
+
+    void remove(Interval interval) {
+        boolean removed = extract(interval.alpha, interval);
+        if (extract(interval.omega, interval)) {
+            removed = true;
+        }
+        if (removed) {
+            count--;
+        }
+    }
+
+    void moved(Interval interval, Joint from, Joint to) {
+        if (!interval.contains(from)) {
+            extract(from, interval);
+        }
+        if (interval.contains(to)) {
+            List<Interval> list = map.get(to);
+            if (list == null || !list.contains(interval)) {
+                insert(to, interval);
+            }
+        }
+    }
+
+    private void rebuild(List<Interval> intervals, List<Interval> pending) {
+        map.clear();
+        count = 0;
+        nextOrder = 0;
+        for (Interval interval : intervals) {
+            add(interval);
+        }
+        for (Interval interval : pending) {
+            add(interval);
+        }
+        valid = true;
+    }
+
+    private void insert(Joint joint, Interval interval) {
+        if (joint == null) {
+            return;
+        }
+        List<Interval> list = map.get(joint);
+        if (list == null) {
+            map.put(joint, list = new ArrayList<Interval>(6));
+        }
+        int position = list.size();
+        while (position > 0 && list.get(position - 1).order > interval.order) {
+            position--;
+        }
+        list.add(position, interval);
+    }
+
+    private boolean extract(Joint joint, Interval interval) {
+        if (joint == null) {
+            return false;
+        }
+        List<Interval> list = map.get(joint);
+        if (list == null || !list.remove(interval)) {
+            return false;
+        }
+        if (list.isEmpty()) {
+            map.remove(joint);
+        }
+        return true;
+    }
+}
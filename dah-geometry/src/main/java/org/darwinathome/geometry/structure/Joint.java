@@ -23,6 +23,7 @@ public class Joint {
     Arrow gravity = new Arrow();
     double altitude;
     Thing thing;
+    int packedIndex = -1;
 
     Joint(Who who) {
         this.who = who;
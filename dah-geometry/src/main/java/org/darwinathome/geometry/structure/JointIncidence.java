@@ -0,0 +1,155 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package org.darwinathome.geometry.structure;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remember which faces or tetras of a fabric touch each joint, keyed by the joint's who, so that finding
+ * the ones around a joint or a triangle of joints doesn't mean walking all of them.  Each list is kept
+ * in the same order as the fabric's own list.
+ * <p/>
+ * Only Fabric changes the joints of its faces and tetras, so the index only has to be built again when
+ * something was added to or removed from the list directly, which shows up as a different size.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+abstract class JointIncidence<T> {
+    private Map<Who, List<T>> map = new HashMap<Who, List<T>>();
+    private Map<T, Integer> sequence = new IdentityHashMap<T, Integer>();
+    private int nextSequence;
+    private Comparator<T> comparator = new Comparator<T>() {
+        public int compare(T a, T b) {
+            return sequence.get(a) - sequence.get(b);
+        }
+    };
+
+    abstract List<Joint> getJoints(T item);
+
+    List<T> get(Who who, List<T> items) {
+        check(items);
+        List<T> found = map.get(who);
+        if (found == null) {
+            return Collections.emptyList();
+        }
+        return found;
+    }
+
+    List<T> get(Joint joint, List<T> items) {
+        List<T> found = new ArrayList<T>();
+        for (T item : get(joint.who, items)) {
+            if (getJoints(item).contains(joint)) {
+                found.add(item);
+            }
+        }
+        return found;
+    }
+
+    List<T> getShortest(Who whoA, Who whoB, Who whoC, List<T> items) {
+        List<T> found = get(whoA, items);
+        List<T> foundB = get(whoB, items);
+        if (foundB.size() < found.size()) {
+            found = foundB;
+        }
+        List<T> foundC = get(whoC, items);
+        if (foundC.size() < found.size()) {
+            found = foundC;
+        }
+        return found;
+    }
+
+    List<T> getAny(List<Joint> joints, List<T> items) {
+        Map<T, T> found = new IdentityHashMap<T, T>();
+        for (Joint joint : joints) {
+            for (T item : get(joint.who, items)) {
+                found.put(item, item);
+            }
+        }
+        List<T> sorted = new ArrayList<T>(found.keySet());
+        Collections.sort(sorted, comparator);
+        return sorted;
+    }
+
+    List<T> detach(Joint joint, List<T> items) {
+        List<T> found = get(joint, items);
+        for (T item : found) {
+            unlink(item);
+        }
+        return found;
+    }
+
+    boolean detach(T item, List<T> items) {
+        check(items);
+        if (!sequence.containsKey(item)) {
+            return false;
+        }
+        unlink(item);
+        return true;
+    }
+
+    void attach(List<T> detached) {
+        for (T item : detached) {
+            link(item);
+        }
+    }
+
+    void add(T item) {
+        sequence.put(item, nextSequence++);
+        link(item);
+    }
+
+    void remove(T item) {
+        if (sequence.containsKey(item)) {
+            unlink(item);
+            sequence.remove(item);
+        }
+    }
+
+    private void check(List<T> items) {
+        if (sequence.size() != items.size()) {
+            map.clear();
+            sequence.clear();
+            nextSequence = 0;
+            for (T item : items) {
+                add(item);
+            }
+        }
+    }
+
+    private void link(T item) {
+        int itemSequence = sequence.get(item);
+        for (Joint joint : getJoints(item)) {
+            List<T> list = map.get(joint.who);
+            if (list == null) {
+                map.put(joint.who, list = new ArrayList<T>(6));
+            }
+            else if (list.contains(item)) {
+                continue;
+            }
+            int position = list.size();
+            while (position > 0 && sequence.get(list.get(position - 1)) > itemSequence) {
+                position--;
+            }
+            list.add(position, item);
+        }
+    }
+
+    private void unlink(T item) {
+        for (Joint joint : getJoints(item)) {
+            List<T> list = map.get(joint.who);
+            if (list != null && list.remove(item) && list.isEmpty()) {
+                map.remove(joint.who);
+            }
+        }
+    }
+}
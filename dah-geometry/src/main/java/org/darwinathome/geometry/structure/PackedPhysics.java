@@ -0,0 +1,411 @@
+/*
+ * Copyright (C)2008 Gerald de Jong - GNU General Public License
+ * please see the LICENSE.TXT in this distribution for more details.
+ */
+
+package org.darwinathome.geometry.structure;
+
+import org.darwinathome.geometry.math.Arrow;
+
+import java.util.List;
+
+/**
+ * The same physics as the Physics class, but working on joint state packed into primitive arrays
+ * so that the inner loops don't have to chase pointers through Joint and Arrow objects.  The packed
+ * state is attached to the fabric, and written back to the joints only when something outside
+ * of the engine asks the fabric for them.
+ * <p/>
+ * Fabrics which are in the middle of a joint merge (temporary intervals present) are handed to
+ * the ordinary Physics, since their structure changes in the middle of an iteration.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class PackedPhysics implements Fabric.PhysicsTransformation {
+    private static final double AMBIENT_JOINT_MASS = 0.1;
+    private static final double CABLE_MASS_FACTOR = 0.05;
+    private static final double MINIMUM_SPAN = 0.001;
+    private Physics physics;
+    private Physics.Constraints constraints;
+    private int iterations = 1;
+    private Arrow location = new Arrow();
+    private Arrow velocity = new Arrow();
+    private Arrow gravity = new Arrow();
+
+    /**
+     * Constraints which can work on the packed joint state directly, without the joint itself
+     * being brought up to date.
+     */
+
+    public interface Constraints extends Physics.Constraints {
+
+        /**
+         * Exert physics on a joint whose current state is given by the arrows
+         *
+         * @param joint    the joint, for its identity and its thing only
+         * @param fabric   where it lives
+         * @param location where it is now
+         * @param velocity where it's going, to be changed
+         * @param gravity  to be set
+         * @return the altitude of the joint
+         */
+
+        double exertJointPhysics(Joint joint, Fabric fabric, Arrow location, Arrow velocity, Arrow gravity);
+    }
+
+    public PackedPhysics(Physics.Constraints constraints) {
+        this.constraints = constraints;
+        this.physics = new Physics(constraints);
+    }
+
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public void transform(Fabric fabric) {
+        for (int walk = 0; walk < iterations; walk++) {
+            Packing packing = fabric.packing;
+            if (packing == null) {
+                packing = fabric.packing = new Packing();
+            }
+            if (!packing.loaded) {
+                packing.load(fabric);
+            }
+            if (packing.merging) {
+                physics.transform(fabric);
+            }
+            else {
+                iterate(fabric, packing);
+                constraints.postIterate(fabric);
+            }
+        }
+    }
+
+    private void iterate(Fabric fabric, Packing p) {
+        fabric.age++;
+        p.dirty = true;
+        double elasticFactor = constraints.getElasticFactor().get();
+        boolean anySpanActive = false;
+        for (int walk = 0; walk < p.intervalCount; walk++) {
+            Interval interval = p.intervals[walk];
+            if (interval.span.experienceTime(fabric.age)) {
+                anySpanActive = true;
+            }
+            if (p.live[walk]) {
+                elastic(p, walk, interval.span, elasticFactor);
+            }
+        }
+        if (anySpanActive) {
+            fabric.spansWereActive();
+        }
+        double[] v = p.velocity;
+        double[] a = p.absorb;
+        double[] u = p.unit;
+        for (int walk = 0; walk < p.intervalCount; walk++) {
+            if (!p.live[walk]) continue;
+            double degree = p.smooth[walk];
+            int alpha = p.alpha[walk] * 3;
+            int omega = p.omega[walk] * 3;
+            int unit = walk * 3;
+            double alphaAgreement = (v[alpha] * u[unit] + v[alpha + 1] * u[unit + 1] + v[alpha + 2] * u[unit + 2]) * degree;
+            double omegaAgreement = (v[omega] * u[unit] + v[omega + 1] * u[unit + 1] + v[omega + 2] * u[unit + 2]) * degree;
+            for (int xyz = 0; xyz < 3; xyz++) {
+                double alphaProjection = u[unit + xyz] * alphaAgreement;
+                double omegaProjection = u[unit + xyz] * omegaAgreement;
+                double projection = (alphaProjection + omegaProjection) * 0.5;
+                a[alpha + xyz] -= alphaProjection;
+                a[omega + xyz] -= omegaProjection;
+                a[alpha + xyz] += projection;
+                a[omega + xyz] += projection;
+            }
+        }
+        double[] f = p.force;
+        double[] g = p.gravity;
+        double[] l = p.location;
+        for (int walk = 0; walk < p.jointCount; walk++) {
+            if (!p.active[walk]) continue;
+            if (p.mass[walk] == 0) {
+                throw new RuntimeException("No mass! " + p.joints[walk]);
+            }
+            exertJointPhysics(fabric, p, walk);
+            int index = walk * 3;
+            double inverseMass = 1 / p.mass[walk];
+            for (int xyz = index; xyz < index + 3; xyz++) {
+                v[xyz] += f[xyz] * inverseMass;
+                f[xyz] = 0;
+                v[xyz] += a[xyz];
+                a[xyz] = 0;
+            }
+        }
+        double[] altitude = p.altitude;
+        for (int walk = 0; walk < p.intervalCount; walk++) {
+            if (!p.live[walk]) continue;
+            int alphaIndex = p.alpha[walk];
+            int omegaIndex = p.omega[walk];
+            double alphaAltitude = altitude[alphaIndex];
+            double omegaAltitude = altitude[omegaIndex];
+            int alpha = alphaIndex * 3;
+            int omega = omegaIndex * 3;
+            boolean straddle = alphaAltitude > 0 ^ omegaAltitude > 0;
+            double totalAltitude = Math.abs(alphaAltitude) + Math.abs(omegaAltitude);
+            if (straddle && totalAltitude > 0.001) {
+                double interpolation = Math.abs(omegaAltitude) / totalAltitude;
+                double antiInterpolation = 1 - interpolation;
+                for (int xyz = 0; xyz < 3; xyz++) {
+                    double pull = g[alpha + xyz] * antiInterpolation + g[omega + xyz] * interpolation;
+                    v[alpha + xyz] += pull;
+                    v[omega + xyz] += pull;
+                }
+            }
+            else {
+                for (int xyz = 0; xyz < 3; xyz++) {
+                    double pull = (g[alpha + xyz] + g[omega + xyz]) * 0.5;
+                    v[alpha + xyz] += pull;
+                    v[omega + xyz] += pull;
+                }
+            }
+        }
+        for (int walk = 0; walk < p.jointCount; walk++) {
+            if (!p.active[walk]) continue;
+            int index = walk * 3;
+            l[index] += v[index];
+            l[index + 1] += v[index + 1];
+            l[index + 2] += v[index + 2];
+            p.mass[walk] = AMBIENT_JOINT_MASS;
+        }
+    }
+
+    private void elastic(Packing p, int walk, Span span, double elasticFactor) {
+        double[] l = p.location;
+        double[] u = p.unit;
+        int alpha = p.alpha[walk] * 3;
+        int omega = p.omega[walk] * 3;
+        int unit = walk * 3;
+        double x = l[omega] - l[alpha];
+        double y = l[omega + 1] - l[alpha + 1];
+        double z = l[omega + 2] - l[alpha + 2];
+        double actual = span.actual = Math.sqrt(x * x + y * y + z * z);
+        if (actual > 0.001) {
+            double scale = 1 / actual;
+            u[unit] = x * scale;
+            u[unit + 1] = y * scale;
+            u[unit + 2] = z * scale;
+        }
+        else {
+            u[unit] = 0;
+            u[unit + 1] = 0;
+            u[unit + 2] = 1;
+        }
+        if (actual > MINIMUM_SPAN) {
+            boolean canPush = p.push[walk];
+            double ideal = span.getCurrentIdeal();
+            double stress = span.stress = elasticFactor * (actual - ideal) * (canPush ? ideal * ideal : 1);
+            if (canPush || stress > 0) {
+                double[] f = p.force;
+                double half = stress / 2;
+                for (int xyz = 0; xyz < 3; xyz++) {
+                    f[alpha + xyz] += u[unit + xyz] * half;
+                    f[omega + xyz] -= u[unit + xyz] * half;
+                }
+            }
+            double mass = canPush ? ideal * ideal * ideal : actual * CABLE_MASS_FACTOR;
+            p.mass[p.alpha[walk]] += mass / 2;
+            p.mass[p.omega[walk]] += mass / 2;
+        }
+    }
+
+    private void exertJointPhysics(Fabric fabric, Packing p, int walk) {
+        Joint joint = p.joints[walk];
+        int index = walk * 3;
+        p.get(p.location, index, location);
+        p.get(p.velocity, index, velocity);
+        p.get(p.gravity, index, gravity);
+        if (constraints instanceof Constraints) {
+            p.altitude[walk] = ((Constraints) constraints).exertJointPhysics(joint, fabric, location, velocity, gravity);
+        }
+        else {
+            joint.location.set(location);
+            joint.velocity.set(velocity);
+            joint.gravity.set(gravity);
+            joint.altitude = p.altitude[walk];
+            constraints.exertJointPhysics(joint, fabric);
+            velocity.set(joint.velocity);
+            gravity.set(joint.gravity);
+            p.altitude[walk] = joint.altitude;
+        }
+        p.put(velocity, p.velocity, index);
+        p.put(gravity, p.gravity, index);
+    }
+
+    /**
+     * The packed state of one fabric, kept by the fabric itself
+     */
+
+    static class Packing {
+        boolean loaded;
+        boolean dirty;
+        boolean merging;
+        int jointCount;
+        Joint[] joints = new Joint[0];
+        boolean[] active = new boolean[0];
+        double[] location = new double[0];
+        double[] velocity = new double[0];
+        double[] force = new double[0];
+        double[] absorb = new double[0];
+        double[] gravity = new double[0];
+        double[] altitude = new double[0];
+        double[] mass = new double[0];
+        int intervalCount;
+        Interval[] intervals = new Interval[0];
+        boolean[] live = new boolean[0];
+        boolean[] push = new boolean[0];
+        double[] smooth = new double[0];
+        int[] alpha = new int[0];
+        int[] omega = new int[0];
+        double[] unit = new double[0];
+
+        void load(Fabric fabric) {
+            List<Joint> jointList = fabric.joints;
+            List<Interval> intervalList = fabric.intervals;
+            jointCount = 0;
+            intervalCount = 0;
+            merging = false;
+            ensureJoints(jointList.size() + intervalList.size() * 2);
+            ensureIntervals(intervalList.size());
+            for (Joint joint : jointList) {
+                add(joint, true);
+            }
+            for (Interval interval : intervalList) {
+                if (interval.role == Interval.Role.TEMPORARY || interval.alpha == null || interval.omega == null) {
+                    merging = true;
+                    break;
+                }
+                intervals[intervalCount] = interval;
+                live[intervalCount] = interval.role != Interval.Role.ELIMINATED;
+                push[intervalCount] = interval.role.canPush;
+                smooth[intervalCount] = interval.role.smoothVelocity;
+                alpha[intervalCount] = indexOf(interval.alpha);
+                omega[intervalCount] = indexOf(interval.omega);
+                intervalCount++;
+            }
+            loaded = true;
+            dirty = false;
+        }
+
+        void sync() {
+            if (!loaded || !dirty) {
+                return;
+            }
+            for (int walk = 0; walk < jointCount; walk++) {
+                Joint joint = joints[walk];
+                int index = walk * 3;
+                get(location, index, joint.location);
+                get(velocity, index, joint.velocity);
+                get(force, index, joint.force);
+                get(absorb, index, joint.absorbVelocity);
+                get(gravity, index, joint.gravity);
+                joint.altitude = altitude[walk];
+                joint.intervalMass = mass[walk];
+            }
+            for (int walk = 0; walk < intervalCount; walk++) {
+                Interval interval = intervals[walk];
+                if (interval.unit == null) {
+                    interval.unit = new Arrow();
+                }
+                get(unit, walk * 3, interval.unit);
+            }
+            dirty = false;
+        }
+
+        double getMeanSquaredSpeed() {
+            double sum = 0;
+            int count = 0;
+            for (int walk = 0; walk < jointCount; walk++) {
+                if (active[walk]) {
+                    int index = walk * 3;
+                    sum += velocity[index] * velocity[index] + velocity[index + 1] * velocity[index + 1] + velocity[index + 2] * velocity[index + 2];
+                    count++;
+                }
+            }
+            return count == 0 ? 0 : sum / count;
+        }
+
+        void release() {
+            sync();
+            for (int walk = 0; walk < jointCount; walk++) {
+                joints[walk] = null;
+            }
+            for (int walk = 0; walk < intervalCount; walk++) {
+                intervals[walk] = null;
+            }
+            loaded = false;
+        }
+
+        private int indexOf(Joint joint) {
+            int index = joint.packedIndex;
+            if (index >= 0 && index < jointCount && joints[index] == joint) {
+                return index;
+            }
+            return add(joint, false);
+        }
+
+        private int add(Joint joint, boolean inList) {
+            int index = jointCount++;
+            joints[index] = joint;
+            joint.packedIndex = index;
+            active[index] = inList && joint.who.side != Who.Side.ELIMINATED && joint.who.side != Who.Side.TEMPORARY;
+            put(joint.location, location, index * 3);
+            put(joint.velocity, velocity, index * 3);
+            put(joint.force, force, index * 3);
+            put(joint.absorbVelocity, absorb, index * 3);
+            put(joint.gravity, gravity, index * 3);
+            altitude[index] = joint.altitude;
+            mass[index] = joint.intervalMass;
+            return index;
+        }
+
+        private void ensureJoints(int count) {
+            if (joints.length >= count) {
+                return;
+            }
+            joints = new Joint[count];
+            active = new boolean[count];
+            location = new double[count * 3];
+            velocity = new double[count * 3];
+            force = new double[count * 3];
+            absorb = new double[count * 3];
+            gravity = new double[count * 3];
+            altitude = new double[count];
+            mass = new double[count];
+        }
+
+        private void ensureIntervals(int count) {
+            if (intervals.length >= count) {
+                return;
+            }
+            intervals = new Interval[count];
+            live = new boolean[count];
+            push = new boolean[count];
+            smooth = new double[count];
+            alpha = new int[count];
+            omega = new int[count];
+            unit = new double[count * 3];
+        }
+
+        private void get(double[] array, int index, Arrow arrow) {
+            arrow.x = array[index];
+            arrow.y = array[index + 1];
+            arrow.z = array[index + 2];
+        }
+
+        private void put(Arrow arrow, double[] array, int index) {
+            array[index] = arrow.x;
+            array[index + 1] = arrow.y;
+            array[index + 2] = arrow.z;
+        }
+    }
+}
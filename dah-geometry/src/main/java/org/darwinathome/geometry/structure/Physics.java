@@ -56,6 +56,7 @@ public class Physics implements Fabric.PhysicsTransformation {
     }
 
     public void transform(Fabric fabric) {
+        fabric.releaseJoints();
         for (int walk = 0; walk < iterations; walk++) {
             iterate(fabric);
             constraints.postIterate(fabric);
@@ -65,7 +66,8 @@ public class Physics implements Fabric.PhysicsTransformation {
     private void iterate(Fabric fabric) {
         fabric.age++;
         boolean anySpanActive = false;
-        for (Interval interval : fabric.intervals) {
+        for (int walk = 0; walk < fabric.intervals.size(); walk++) {
+            Interval interval = fabric.intervals.get(walk);
             if (interval.span.experienceTime(fabric.age)) {
                 anySpanActive = true;
             }
@@ -81,11 +83,13 @@ public class Physics implements Fabric.PhysicsTransformation {
         if (anySpanActive) {
             fabric.spansWereActive();
         }
-        for (Interval interval : fabric.intervals) {
+        for (int walk = 0; walk < fabric.intervals.size(); walk++) {
+            Interval interval = fabric.intervals.get(walk);
             if (interval.role == Interval.Role.ELIMINATED) continue;
             smoothVelocity(interval, interval.role.smoothVelocity);
         }
-        for (Joint joint : fabric.joints) {
+        for (int walk = 0; walk < fabric.joints.size(); walk++) {
+            Joint joint = fabric.joints.get(walk);
             switch (joint.who.side) {
                 case ELIMINATED:
                 case TEMPORARY:
@@ -100,7 +104,8 @@ public class Physics implements Fabric.PhysicsTransformation {
             joint.velocity.add(joint.absorbVelocity);
             joint.absorbVelocity.zero();
         }
-        for (Interval interval : fabric.intervals) {
+        for (int walk = 0; walk < fabric.intervals.size(); walk++) {
+            Interval interval = fabric.intervals.get(walk);
             if (interval.role == Interval.Role.ELIMINATED) continue;
             double alphaAltitude = interval.alpha.getAltitude();
             double omegaAltitude = interval.omega.getAltitude();
@@ -120,7 +125,8 @@ public class Physics implements Fabric.PhysicsTransformation {
             interval.alpha.getVelocity().add(gravity);
             interval.omega.getVelocity().add(gravity);
         }
-        for (Joint joint : fabric.joints) {
+        for (int walk = 0; walk < fabric.joints.size(); walk++) {
+            Joint joint = fabric.joints.get(walk);
             switch (joint.who.side) {
                 case ELIMINATED:
                 case TEMPORARY:
@@ -171,7 +177,9 @@ public class Physics implements Fabric.PhysicsTransformation {
     }
 
     private void eliminate(Interval interval, Fabric fabric) {
-        logger.info(fabric.age + ": Eliminating " + interval);
+        if (logger.isDebugEnabled()) {
+            logger.debug(fabric.age + ": Eliminating " + interval);
+        }
         fabric.getMods().getIntervalMod().remove(interval);
         if (!fabric.getRealIntervals(interval.alpha, interval.omega).isEmpty()) { // todo: eliminate later
             throw new RuntimeException("Other intervals!");
@@ -338,7 +346,9 @@ public class Physics implements Fabric.PhysicsTransformation {
                 logger.info("Defaulting to SPRING role");
             }
             totalSpan += member.span.getUltimateIdeal();
-            logger.info(fabric.age + ":removing multiple " + member);
+            if (logger.isDebugEnabled()) {
+                logger.debug(fabric.age + ":removing multiple " + member);
+            }
             fabric.getMods().getIntervalMod().remove(member);
         }
         if (role == null) {
@@ -347,13 +357,17 @@ public class Physics implements Fabric.PhysicsTransformation {
         Interval interval = fabric.createInterval(jointA, jointB, role);
         interval.span.setIdeal(totalSpan / multiples.size(), INTERVAL_MERGE_ITERATIONS);
         fabric.getMods().getIntervalMod().add(interval);
-        logger.info(fabric.age + ":replacing "+multiples.size()+" with one: " + interval);
+        if (logger.isDebugEnabled()) {
+            logger.debug(fabric.age + ":replacing "+multiples.size()+" with one: " + interval);
+        }
     }
 
     private void removeRedundantFaces(Fabric fabric, Joint joint) {
         List<Face> faces = fabric.getFaces(joint);
         int count = faces.size();
-        logger.info(fabric.age + ": remove redundant faces.. now " + count + " around " + joint);
+        if (logger.isDebugEnabled()) {
+            logger.debug(fabric.age + ": remove redundant faces.. now " + count + " around " + joint);
+        }
         for (int walkA = 0; walkA < count; walkA++) {
             Face faceA = faces.get(walkA);
             if (fabric.getMods().getFaceMod().isRemoved(faceA)) continue;
@@ -365,11 +379,15 @@ public class Physics implements Fabric.PhysicsTransformation {
                     Arrow normalB = faceB.getNormal();
                     double dot = normalA.dot(normalB);
                     if (dot > 0) {
-                        logger.info(fabric.age + ": double agreeing face, one removed: " + faceB);
+                        if (logger.isDebugEnabled()) {
+                            logger.debug(fabric.age + ": double agreeing face, one removed: " + faceB);
+                        }
                         fabric.getMods().getFaceMod().remove(faceB);
                     }
                     else {
-                        logger.info(fabric.age + ": opposing faces, both removed: " + faceA + ", " + faceB);
+                        if (logger.isDebugEnabled()) {
+                            logger.debug(fabric.age + ": opposing faces, both removed: " + faceA + ", " + faceB);
+                        }
                         fabric.getMods().getFaceMod().remove(faceA);
                         fabric.getMods().getFaceMod().remove(faceB);
                     }
@@ -16,6 +16,8 @@ public class Span {
     double ideal;
     double stress;
     Future future;
+    Fabric sleeper;
+    Future spareFuture;
 
     public Span(double actual, double ideal, double stress) {
         this.actual = actual;
@@ -46,6 +48,15 @@ public class Span {
         return value;
     }
 
+    public void perturbIdeal(int howLong, double first, double second, double third) {
+        int step = howLong / 4;
+        double ultimateIdeal = getUltimateIdeal();
+        setIdeal(ultimateIdeal * first, step);
+        setIdeal(ultimateIdeal * second, step);
+        setIdeal(ultimateIdeal * third, step);
+        setIdeal(ultimateIdeal, step);
+    }
+
     public void perturbIdeal(int howLong, double... perturbations) {
         int step = howLong / (perturbations.length+1);
         double ultimateIdeal = getUltimateIdeal();
@@ -56,11 +67,25 @@ public class Span {
     }
 
     public void setIdeal(double idealValue, int howLong) {
+        if (sleeper != null) {
+            sleeper.wake();
+        }
         if (howLong == 0) {
             ideal = idealValue;
         }
         else {
-            Future newFuture = new Future(idealValue, howLong);
+            Future newFuture = spareFuture;
+            if (newFuture != null) {
+                spareFuture = newFuture.nextFuture;
+                newFuture.nextFuture = null;
+                newFuture.initial = 0;
+                newFuture.when = 0;
+                newFuture.value = idealValue;
+                newFuture.howLong = howLong;
+            }
+            else {
+                newFuture = new Future(idealValue, howLong);
+            }
             if (future == null) {
                 future = newFuture;
             }
@@ -86,6 +111,9 @@ public class Span {
     }
 
     public void adjustIdeal(double factor) {
+        if (sleeper != null) {
+            sleeper.wake();
+        }
         if (future == null) {
             ideal *= factor;
         }
@@ -111,7 +139,10 @@ public class Span {
             int timeLeft = (int)(future.when - time);
             if (timeLeft < 0) {
                 ideal = future.value;
+                Future spent = future;
                 future = future.nextFuture;
+                spent.nextFuture = spareFuture;
+                spareFuture = spent;
             }
             else {
                 ideal = future.getCurrent(timeLeft);
@@ -1,5 +1,7 @@
 package org.darwinathome.geometry.structure;
 
+import org.darwinathome.geometry.math.Arrow;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -9,7 +11,7 @@ import java.util.List;
  * @author Gerald de Jong, Beautiful Code BV, <geralddejong@gmail.com>
  */
 
-public class Vertical implements Physics.Constraints {
+public class Vertical implements PackedPhysics.Constraints {
     private static final double JOINT_RADIUS = 0.01;
     private PhysicsValue airDrag = new PhysicsValue("airDrag", 0.002);
     private PhysicsValue airGravity = new PhysicsValue("airGravity", 0.000001);
@@ -51,22 +53,27 @@ public class Vertical implements Physics.Constraints {
     }
 
     public void exertJointPhysics(Joint joint, Fabric fabric) {
-        double altitude = joint.location.z;
+        exertJointPhysics(joint, fabric, joint.location, joint.velocity, joint.gravity);
+    }
+
+    public double exertJointPhysics(Joint joint, Fabric fabric, Arrow location, Arrow velocity, Arrow gravity) {
+        double altitude = location.z;
         if (altitude > JOINT_RADIUS) {
-            exertGravity(joint, airGravity.get());
-            joint.getVelocity().scale(1 - airDrag.get());
+            velocity.z -= airGravity.get();
+            velocity.scale(1 - airDrag.get());
         }
         else if (altitude < -JOINT_RADIUS) {
-            exertGravity(joint, -airGravity.get() * landGravity.get());
-            joint.getVelocity().scale(1 - airDrag.get() * landDrag.get());
+            velocity.z -= -airGravity.get() * landGravity.get();
+            velocity.scale(1 - airDrag.get() * landDrag.get());
         }
         else {
             double degree = (altitude + JOINT_RADIUS) / (JOINT_RADIUS * 2);
             double gravityValue = airGravity.get() * degree + -airGravity.get() * landGravity.get() * (1 - degree);
-            exertGravity(joint, gravityValue);
+            velocity.z -= gravityValue;
             double drag = airDrag.get() * degree + airDrag.get() * landDrag.get() * (1 - degree);
-            joint.getVelocity().scale(1 - drag);
+            velocity.scale(1 - drag);
         }
+        return joint.altitude; // vertical gravity leaves the altitude alone
     }
 
     public void exertGravity(Joint joint, double value) {
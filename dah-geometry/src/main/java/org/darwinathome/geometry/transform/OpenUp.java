@@ -77,7 +77,7 @@ public class OpenUp implements Fabric.Transformation {
         }
         fabric.getMods().getFaceMod().add(face1);
         Tetra newTetra = new Tetra(joint(0), apex, joint(1), joint(2), face.getOrder() == Face.Order.LEFT_HANDED);
-        face.getJoints().set(0, apex);
+        fabric.setJoint(face, 0, apex);
         fabric.getMods().getTetraMod().add(newTetra);
         if (useChirality) {
             face.twist(face.getChirality() == Face.Chirality.RIGHT_HANDED);
@@ -0,0 +1,313 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+
+package org.darwinathome.server.persistence.impl;
+
+import org.apache.log4j.Logger;
+import org.darwinathome.genetics.Noise;
+import org.darwinathome.genetics.impl.PseudoNoise;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Every change made to the world since it was last saved, so that it can be done again after a crash.
+ * A log starts with the age of the saved world and the state of its noise at that moment, and then the
+ * changes follow, each with the age at which it was made.  Changes are appended as they come and only
+ * forced to disk when sync() is called, so a whole batch of them costs one sync.
+ * <p/>
+ * Whenever the world is saved a new log starts.  The old ones are only thrown away once the saved world
+ * is safely on disk, and until then the logs follow one another, so they can all be replayed from the
+ * last world that made it.  A change which was only partly written when things went wrong is the end of
+ * its log.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+class CommandLog {
+    private static final DecimalFormat WORLD_NUMBER_FORMATTER = new DecimalFormat("000000000");
+    private static final String EXTENSION = ".commands";
+    private static final int MAGIC = 0xC0331A01;
+    private Logger log = Logger.getLogger(getClass());
+    private File directory;
+    private FileOutputStream fos;
+    private DataOutputStream dos;
+    private boolean unsynced;
+    private int appendCount;
+    private int syncCount;
+
+    CommandLog(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Start a new log for a world that is about to be saved
+     *
+     * @param age the age of the saved world
+     * @param seed the seed of the noise of the world at that age
+     * @throws IOException when the log can't be written
+     */
+
+    void start(long age, Noise.Seed seed) throws IOException {
+        close();
+        //noinspection ResultOfMethodCallIgnored
+        directory.mkdirs();
+        File file = new File(directory, WORLD_NUMBER_FORMATTER.format(age) + EXTENSION);
+        fos = new FileOutputStream(file);
+        dos = new DataOutputStream(new BufferedOutputStream(fos));
+        dos.writeInt(MAGIC);
+        dos.writeLong(age);
+        writeSeed((PseudoNoise.ClonableSeed) seed, dos);
+        unsynced = true;
+        sync();
+    }
+
+    /**
+     * Throw away the logs which lead up to a world that is now safely saved.  This is done by whoever saves
+     * the world, so it may be another thread than the one that appends.
+     *
+     * @param age the age of the saved world
+     */
+
+    void discardBefore(long age) {
+        for (File old : listLogs()) {
+            if (getAge(old) < age && !old.delete()) {
+                log.warn("Unable to delete " + old.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Add a change to the log, which is only sure to be on disk after the next sync()
+     *
+     * @param age the age of the world when the change was made
+     * @param command the change
+     * @throws IOException when the log can't be written
+     */
+
+    void append(long age, byte[] command) throws IOException {
+        if (dos == null) {
+            throw new IOException("No command log started");
+        }
+        dos.writeLong(age);
+        dos.writeInt(command.length);
+        dos.write(command);
+        unsynced = true;
+        appendCount++;
+    }
+
+    /**
+     * Force whatever was appended since the last time onto the disk
+     *
+     * @throws IOException when the log can't be written
+     */
+
+    void sync() throws IOException {
+        if (unsynced) {
+            dos.flush();
+            fos.getFD().sync();
+            unsynced = false;
+            syncCount++;
+        }
+    }
+
+    void close() throws IOException {
+        if (dos != null) {
+            sync();
+            dos.close();
+            dos = null;
+            fos = null;
+            if (appendCount > 0) {
+                log.info(appendCount + " commands were logged in " + syncCount + " syncs");
+            }
+        }
+        appendCount = syncCount = 0;
+    }
+
+    /**
+     * Give up on the log after it could not be written, without forcing what is still waiting to be written,
+     * since those changes were never done.  Nothing can be appended until the next start().
+     */
+
+    void abandon() {
+        if (dos != null) {
+            try {
+                fos.close();
+            }
+            catch (IOException e) {
+                log.warn("Unable to close abandoned command log", e);
+            }
+            dos = null;
+            fos = null;
+        }
+        unsynced = false;
+        appendCount = syncCount = 0;
+    }
+
+    /**
+     * Read back the logs which follow a saved world, each up to where it was cut off
+     *
+     * @param age the age of the saved world
+     * @return the logs in order, the first of them starting at the given age, or none if there is no such log.
+     * A log cut off before its first command is left out, since it has nothing to replay.
+     * @throws IOException when a log can't be read
+     */
+
+    List<Replay> fetchSince(long age) throws IOException {
+        File[] logs = listLogs();
+        Arrays.sort(logs);
+        List<Replay> replays = new ArrayList<Replay>();
+        for (File file : logs) {
+            if (getAge(file) >= age) {
+                Replay replay = read(file);
+                if (replay != null) {
+                    replays.add(replay);
+                }
+            }
+        }
+        if (!replays.isEmpty() && replays.get(0).getAge() != age) {
+            log.warn("No command log starts at " + age + ", so nothing can be replayed");
+            replays.clear();
+        }
+        return replays;
+    }
+
+    private Replay read(File file) throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            Replay replay;
+            try {
+                if (dis.readInt() != MAGIC) {
+                    throw new IOException("This is not a command log: " + file.getAbsolutePath());
+                }
+                replay = new Replay(dis.readLong(), readSeed(dis));
+            }
+            catch (EOFException e) {
+                log.warn("Command log was cut off before its first command: " + file.getAbsolutePath());
+                return null; // nothing was logged in it
+            }
+            try {
+                while (true) {
+                    long age = dis.readLong();
+                    int length = dis.readInt();
+                    if (length < 0 || length > file.length()) {
+                        break; // cut off in the middle
+                    }
+                    byte[] command = new byte[length];
+                    dis.readFully(command);
+                    replay.entries.add(new Entry(age, command));
+                }
+            }
+            catch (EOFException e) {
+                // cut off at the end or in the middle
+            }
+            log.info("Read " + replay.entries.size() + " commands from " + file.getAbsolutePath());
+            return replay;
+        }
+        finally {
+            dis.close();
+        }
+    }
+
+    private File[] listLogs() {
+        File[] logs = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return !file.isDirectory() && file.getName().endsWith(EXTENSION);
+            }
+        });
+        return logs == null ? new File[0] : logs;
+    }
+
+    private static long getAge(File file) {
+        return Long.parseLong(file.getName().substring(0, file.getName().length() - EXTENSION.length()));
+    }
+
+    private static void writeSeed(PseudoNoise.ClonableSeed seed, DataOutputStream dos) throws IOException {
+        dos.writeInt(seed.bytes.length);
+        dos.write(seed.bytes);
+        dos.writeInt(seed.count);
+        dos.writeInt(seed.state == null ? -1 : seed.state.length);
+        if (seed.state != null) {
+            for (int value : seed.state) {
+                dos.writeInt(value);
+            }
+        }
+        dos.writeInt(seed.index);
+    }
+
+    private static Noise.Seed readSeed(DataInputStream dis) throws IOException {
+        byte[] bytes = new byte[dis.readInt()];
+        dis.readFully(bytes);
+        int count = dis.readInt();
+        int stateLength = dis.readInt();
+        int[] state = null;
+        if (stateLength >= 0) {
+            state = new int[stateLength];
+            for (int walk = 0; walk < state.length; walk++) {
+                state[walk] = dis.readInt();
+            }
+        }
+        return new PseudoNoise.ClonableSeed(bytes, count, state, dis.readInt());
+    }
+
+    /**
+     * A log as it was read back
+     */
+
+    static class Replay {
+        private long age;
+        private Noise.Seed seed;
+        private List<Entry> entries = new ArrayList<Entry>();
+
+        private Replay(long age, Noise.Seed seed) {
+            this.age = age;
+            this.seed = seed;
+        }
+
+        long getAge() {
+            return age;
+        }
+
+        Noise.Seed getSeed() {
+            return seed;
+        }
+
+        List<Entry> getEntries() {
+            return entries;
+        }
+    }
+
+    static class Entry {
+        private long age;
+        private byte[] command;
+
+        private Entry(long age, byte[] command) {
+            this.age = age;
+            this.command = command;
+        }
+
+        long getAge() {
+            return age;
+        }
+
+        byte[] getCommand() {
+            return command;
+        }
+    }
+}
@@ -0,0 +1,366 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+
+package org.darwinathome.server.persistence.impl;
+
+import org.apache.log4j.Logger;
+import org.darwinathome.universe.World;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The saved worlds, in directories for the days and hours.  Every so many saves the whole world is written
+ * as a keyframe, and in between only how the world differs from the last keyframe.  The water and each
+ * being are deflated with what they were in the keyframe as the dictionary, so whatever is still the same
+ * only costs a reference back.  A being that hasn't changed at all, like one that is asleep, is only noted
+ * as being the same, and a being that wasn't there yet is deflated on its own.
+ * <p/>
+ * A delta always refers to a keyframe written before it by the same archive, so after a restart the first
+ * save is a keyframe.  Any saved age can be read back as long as its keyframe is still there.
+ * <p/>
+ * Each file is written under a temporary name, forced to disk and only then renamed, so a file with the
+ * proper name is always whole.
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+class WorldArchive {
+    private static final DecimalFormat HOUR_FORMATTER = new DecimalFormat("00");
+    private static final DecimalFormat DAY_FORMATTER = new DecimalFormat("000");
+    private static final DecimalFormat WORLD_NUMBER_FORMATTER = new DecimalFormat("000000000");
+    private static final String EXTENSION = ".world";
+    private static final String DELTA_EXTENSION = ".delta";
+    private static final String TEMPORARY_EXTENSION = ".tmp";
+    private static final int DELTA_MAGIC = 0xDE17A001;
+    private static final byte SAME = 0;
+    private static final byte CHANGED = 1;
+    private static final byte WHOLE = 2;
+    private Logger log = Logger.getLogger(getClass());
+    private File directory;
+    private int keyframeInterval;
+    private int savesSinceKeyframe;
+    private long keyframeAge = -1;
+    private byte[] keyframeHeader;
+    private List<byte[]> keyframeBeings;
+    private Map<String, Integer> keyframeIndex = new HashMap<String, Integer>();
+
+    WorldArchive(File directory, int keyframeInterval) {
+        this.directory = directory;
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * Save the world, as a keyframe or as a delta from the last one
+     *
+     * @param world what World.write() produced
+     * @param age the age of the world
+     * @param bodyNames the names of the beings in the order in which they were written
+     * @return the file written
+     * @throws IOException when writing fails
+     */
+
+    File save(byte[] world, long age, List<String> bodyNames) throws IOException {
+        byte[] header = Arrays.copyOf(world, World.getBeingsOffset(world));
+        List<byte[]> beings = splitBeings(world);
+        if (beings.size() != bodyNames.size()) {
+            throw new RuntimeException("There are " + beings.size() + " beings but " + bodyNames.size() + " names");
+        }
+        boolean keyframe = keyframeAge < 0 || savesSinceKeyframe + 1 >= keyframeInterval || header.length != keyframeHeader.length;
+        File file = new File(new File(directory, pathFormat(age)), fileNameFormat(age, keyframe));
+        //noinspection ResultOfMethodCallIgnored
+        file.getParentFile().mkdirs();
+        File temporary = new File(file.getParentFile(), file.getName() + TEMPORARY_EXTENSION);
+        FileOutputStream fos = new FileOutputStream(temporary);
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+        try {
+            if (keyframe) {
+                dos.write(world);
+            }
+            else {
+                writeDelta(header, beings, bodyNames, dos);
+            }
+            dos.flush();
+            fos.getFD().sync();
+        }
+        finally {
+            dos.close();
+        }
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Unable to rename " + temporary.getAbsolutePath() + " to " + file.getName());
+        }
+        if (keyframe) {
+            keyframeAge = age;
+            keyframeHeader = header;
+            keyframeBeings = beings;
+            keyframeIndex.clear();
+            for (int walk = 0; walk < bodyNames.size(); walk++) {
+                keyframeIndex.put(bodyNames.get(walk), walk);
+            }
+            savesSinceKeyframe = 0;
+        }
+        else {
+            savesSinceKeyframe++;
+        }
+        return file;
+    }
+
+    private void writeDelta(byte[] header, List<byte[]> beings, List<String> bodyNames, DataOutputStream dos) throws IOException {
+        dos.writeInt(DELTA_MAGIC);
+        dos.writeLong(keyframeAge);
+        writeDeflated(header, keyframeHeader, dos);
+        dos.writeInt(beings.size());
+        for (int walk = 0; walk < beings.size(); walk++) {
+            byte[] being = beings.get(walk);
+            Integer index = keyframeIndex.get(bodyNames.get(walk));
+            if (index == null) {
+                dos.writeByte(WHOLE);
+                writeDeflated(being, null, dos);
+            }
+            else if (Arrays.equals(being, keyframeBeings.get(index))) {
+                dos.writeByte(SAME);
+                dos.writeInt(index);
+            }
+            else {
+                dos.writeByte(CHANGED);
+                dos.writeInt(index);
+                writeDeflated(being, keyframeBeings.get(index), dos);
+            }
+        }
+    }
+
+    /**
+     * Read a saved world back, going back to its keyframe if it is a delta
+     *
+     * @param file a file that save() wrote
+     * @return what World.write() produced when it was saved
+     * @throws IOException when reading fails
+     */
+
+    byte[] read(File file) throws IOException {
+        if (!file.getName().endsWith(DELTA_EXTENSION)) {
+            return readFully(file);
+        }
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (dis.readInt() != DELTA_MAGIC) {
+                throw new IOException("This is not a world delta: " + file.getAbsolutePath());
+            }
+            long age = dis.readLong();
+            byte[] keyframe = readFully(new File(new File(directory, pathFormat(age)), fileNameFormat(age, true)));
+            List<byte[]> beings = splitBeings(keyframe);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(keyframe.length);
+            out.write(readDeflated(dis, Arrays.copyOf(keyframe, World.getBeingsOffset(keyframe))));
+            int beingCount = dis.readInt();
+            while (beingCount-- > 0) {
+                byte kind = dis.readByte();
+                switch (kind) {
+                    case SAME:
+                        out.write(beings.get(dis.readInt()));
+                        break;
+                    case CHANGED:
+                        out.write(readDeflated(dis, beings.get(dis.readInt())));
+                        break;
+                    case WHOLE:
+                        out.write(readDeflated(dis, null));
+                        break;
+                    default:
+                        throw new IOException("Unknown kind of being " + kind + " in " + file.getAbsolutePath());
+                }
+            }
+            return out.toByteArray();
+        }
+        finally {
+            dis.close();
+        }
+    }
+
+    /**
+     * Find the last world saved, keyframe or delta.  When the newest hour has no whole file yet, because
+     * things went wrong while the first one was being written, the hours before it are tried.
+     *
+     * @return the file or null if there is none
+     */
+
+    File fetchLatestFile() {
+        return fetchLatestFile(directory);
+    }
+
+    private File fetchLatestFile(File directory) {
+        File[] subdirectories = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isDirectory() && file.getName().matches("[DH]\\d{2,3}");
+            }
+        });
+        if (subdirectories != null) {
+            Arrays.sort(subdirectories, new FileNameComparator());
+            for (int walk = subdirectories.length - 1; walk >= 0; walk--) {
+                File latest = fetchLatestFile(subdirectories[walk]);
+                if (latest != null) {
+                    return latest;
+                }
+            }
+        }
+        File[] worldFiles = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return !file.isDirectory() && (file.getName().endsWith(EXTENSION) || file.getName().endsWith(DELTA_EXTENSION));
+            }
+        });
+        if (worldFiles == null || worldFiles.length == 0) {
+            return null;
+        }
+        Arrays.sort(worldFiles, new FileNameComparator());
+        return worldFiles[worldFiles.length - 1];
+    }
+
+    /**
+     * Throw away the files that were still being written when things went wrong.  Only to be done at startup,
+     * before anything is saved.
+     */
+
+    void discardTemporaries() {
+        discardTemporaries(directory);
+    }
+
+    private void discardTemporaries(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                discardTemporaries(file);
+            }
+            else if (file.getName().endsWith(TEMPORARY_EXTENSION)) {
+                log.info("Discarding unfinished " + file.getAbsolutePath());
+                if (!file.delete()) {
+                    log.warn("Unable to delete " + file.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    private static class FileNameComparator implements Comparator<File> {
+        public int compare(File fileA, File fileB) {
+            return fileA.getName().compareTo(fileB.getName());
+        }
+    }
+
+    private static List<byte[]> splitBeings(byte[] world) {
+        List<byte[]> beings = new ArrayList<byte[]>();
+        int offset = World.getBeingsOffset(world);
+        while (offset < world.length) {
+            int length = 4 + (((world[offset] & 0xFF) << 24) | ((world[offset + 1] & 0xFF) << 16) | ((world[offset + 2] & 0xFF) << 8) | (world[offset + 3] & 0xFF));
+            beings.add(Arrays.copyOfRange(world, offset, offset + length)); // with its length, as it was written
+            offset += length;
+        }
+        return beings;
+    }
+
+    private static void writeDeflated(byte[] bytes, byte[] before, DataOutputStream dos) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            if (before != null) {
+                deflater.setDictionary(before);
+            }
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            dos.writeInt(bytes.length);
+            dos.writeInt(out.size());
+            out.writeTo(dos);
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] readDeflated(DataInputStream dis, byte[] before) throws IOException {
+        byte[] bytes = new byte[dis.readInt()];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(readBytes(dis, dis.readInt()));
+            int offset = 0;
+            while (offset < bytes.length) {
+                int inflated = inflater.inflate(bytes, offset, bytes.length - offset);
+                if (inflated == 0 && inflater.needsDictionary() && before != null) {
+                    inflater.setDictionary(before);
+                }
+                else if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("World delta is cut short");
+                }
+                offset += inflated;
+            }
+            return bytes;
+        }
+        catch (DataFormatException e) {
+            throw new IOException("World delta is damaged: " + e.getMessage());
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream dis, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        dis.readFully(bytes);
+        return bytes;
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        DataInputStream dis = new DataInputStream(new FileInputStream(file));
+        try {
+            return readBytes(dis, (int) file.length());
+        }
+        finally {
+            dis.close();
+        }
+    }
+
+    /**
+     * The age of the world in a file that save() wrote
+     *
+     * @param file the file
+     * @return its age
+     */
+
+    static long getAge(File file) {
+        return Long.parseLong(file.getName().substring(0, file.getName().indexOf('.')));
+    }
+
+    private static String pathFormat(long age) {
+        int hour = (int) (age / (60 * 60) % 24);
+        int day = (int) (age / (60 * 60 * 24));
+        return "D" + DAY_FORMATTER.format(day) + File.separator + "H" + HOUR_FORMATTER.format(hour);
+    }
+
+    private static String fileNameFormat(long age, boolean keyframe) {
+        return WORLD_NUMBER_FORMATTER.format(age) + (keyframe ? EXTENSION : DELTA_EXTENSION);
+    }
+}
@@ -10,50 +10,105 @@ package org.darwinathome.server.persistence.impl;
 import org.apache.log4j.Logger;
 import org.darwinathome.Constants;
 import org.darwinathome.body.Being;
+import org.darwinathome.body.BeingFactory;
 import org.darwinathome.body.Embryo;
 import org.darwinathome.body.Target;
 import org.darwinathome.genetics.Genome;
 import org.darwinathome.genetics.Noise;
+import org.darwinathome.genetics.impl.PseudoNoise;
 import org.darwinathome.geometry.math.Arrow;
 import org.darwinathome.server.email.NotificationSender;
 import org.darwinathome.server.persistence.Home;
 import org.darwinathome.server.persistence.WorldHistory;
 import org.darwinathome.universe.SpeechChange;
+import org.darwinathome.universe.SurfaceTopology;
 import org.darwinathome.universe.World;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileFilter;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * This class runs the universe by ticking it and saving every so often
+ * This class runs the universe by ticking it and saving every so often, mostly as deltas from the last
+ * keyframe kept by the world archive
+ * <p/>
+ * The frozen world handed out to the spokes is made by the ticking thread every so many iterations and
+ * published all at once, so asking for it never waits and never freezes the world again.
+ * <p/>
+ * Only the ticking thread touches the world.  Whatever the spokes want done to it becomes a command on a
+ * queue, which the ticking thread works through between ticks while the caller waits for it to complete.
+ * Changes which must show up right away freeze the world then.  How long the commands waited is logged
+ * with every save.
+ * <p/>
+ * The changes are written to the command log before they are done, with one sync for all of those that
+ * were waiting together, and the log starts over whenever the world is saved.  After a crash the latest
+ * saved world is read with the noise it had, and the logged changes are done again at the same ages,
+ * which brings the world back to where it was when the last change was made.
+ * <p/>
+ * Saving is done by a thread of its own, which is handed the frozen bytes so the ticking never waits for
+ * the disk.  Only a few saves can wait for it, and when the disk falls that far behind a save is skipped,
+ * which costs nothing but a longer replay since the logs are only thrown away once a save has made it.
  *
  * @author Gerald de Jong, Beautiful Code BV, <geralddejong@gmail.com>
  */
 
 public class WorldHistoryImpl implements WorldHistory {
-    private static final DecimalFormat HOUR_FORMATTER = new DecimalFormat("00");
-    private static final DecimalFormat DAY_FORMATTER = new DecimalFormat("000");
-    private static final DecimalFormat WORLD_NUMBER_FORMATTER = new DecimalFormat("000000000");
-    private static final String EXTENSION = ".world";
+    private static final String TOPOLOGY_DIRECTORY = "topology";
+    private static final String COMMAND_DIRECTORY = "commands";
+    private static final byte CREATE_BEING = 1;
+    private static final byte SET_SPEECH = 2;
+    private static final byte SET_GENOME = 3;
+    private static final byte SET_TARGET = 4;
+    private static final long FREEZE_INTERVAL = 10;
+    private static final int KEYFRAME_INTERVAL = 12;
+    private static final int SAVE_BACKLOG = 2;
     private Logger log = Logger.getLogger(getClass());
-    private Frozen frozen;
+    private final AtomicReference<Frozen> frozen = new AtomicReference<Frozen>();
+    private boolean changed;
+    private final Queue<Command<?>> commands = new ConcurrentLinkedQueue<Command<?>>();
+    private List<Command<?>> batch = new ArrayList<Command<?>>();
+    private Map<String, Latency> latencies = new HashMap<String, Latency>();
     private Time time = new Time();
     private final Queue<SpeechChange> speechChanges = new ConcurrentLinkedQueue<SpeechChange>();
+    private volatile int parallelism = Runtime.getRuntime().availableProcessors();
+    private volatile int frequency = Constants.FREQUENCY;
+    private volatile long freezeInterval = FREEZE_INTERVAL;
+    private volatile int keyframeInterval = KEYFRAME_INTERVAL;
+    private WorldArchive archive;
+    private CommandLog commandLog;
+    private ExecutorService saver = new ThreadPoolExecutor(
+            1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(SAVE_BACKLOG),
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "World-Saver");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }
+    );
 
     @Autowired
     private Home home;
@@ -65,40 +120,99 @@ public class WorldHistoryImpl implements WorldHistory {
         time.start();
     }
 
-    public synchronized Frozen getFrozenWorld() {
-        if (frozen == null || (frozen.getAge() < world().getAge())) {
-            try {
-                log.info("Freezing...");
-                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                for (Being being : world().getBeings()) {
-                    being.getBody().executeTransformations(null);
-                }
-                world().write(new DataOutputStream(outputStream));
-                frozen = new Frozen(outputStream.toByteArray(), world().getAge());
-            }
-            catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+    /**
+     * How many threads share the physics of the beings in each tick
+     *
+     * @param parallelism the number of threads
+     */
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * How finely the surface of a newly created world is divided into patches.  A world that is read
+     * keeps the frequency it was saved with.
+     *
+     * @param frequency the frequency of the sphere
+     */
+
+    public void setFrequency(int frequency) {
+        this.frequency = frequency;
+    }
+
+    /**
+     * How many iterations may pass before the world handed out is frozen again
+     *
+     * @param freezeInterval the number of iterations
+     */
+
+    public void setFreezeInterval(long freezeInterval) {
+        if (freezeInterval < 1) {
+            throw new RuntimeException("Freeze interval must be at least one iteration, not " + freezeInterval);
         }
-        return frozen;
+        this.freezeInterval = freezeInterval;
     }
 
-    public synchronized void createBeing(String bodyName, Arrow location, Arrow gaze) {
-        world().createBeing(location, gaze, bodyName);
-        frozen = null;
+    /**
+     * How many saves make up a keyframe and the deltas that follow it
+     *
+     * @param keyframeInterval the number of saves, one meaning that every save is a whole world
+     */
+
+    public void setKeyframeInterval(int keyframeInterval) {
+        if (keyframeInterval < 1) {
+            throw new RuntimeException("Keyframe interval must be at least one save, not " + keyframeInterval);
+        }
+        this.keyframeInterval = keyframeInterval;
     }
 
-    public synchronized void setSpeech(String bodyName, String speech) {
-        world().getBeing(bodyName).setSpeech(speech);
-        speechChanges.add(new SpeechChange(world().getAge(), bodyName, speech));
+    public Frozen getFrozenWorld() {
+        Frozen latest = frozen.get();
+        if (latest == null) {
+            throw new RuntimeException("No world yet!");
+        }
+        return latest;
+    }
+
+    public void createBeing(final String bodyName, final Arrow location, final Arrow gaze) {
+        final String id = BeingFactory.createId(); // chosen here, so that it is logged
+        perform("createBeing", new Change<Object>(CREATE_BEING) {
+            void write(DataOutputStream dos) throws IOException {
+                dos.writeUTF(id);
+                dos.writeUTF(bodyName);
+                writeArrow(location, dos);
+                writeArrow(gaze, dos);
+            }
+
+            public Object call() throws Exception {
+                createBeingNow(id, bodyName, location, gaze);
+                return null;
+            }
+        });
+    }
+
+    public void setSpeech(final String bodyName, final String speech) {
+        perform("setSpeech", new Change<Object>(SET_SPEECH) {
+            void write(DataOutputStream dos) throws IOException {
+                dos.writeUTF(bodyName);
+                dos.writeUTF(speech);
+            }
+
+            public Object call() throws Exception {
+                setSpeechNow(bodyName, speech);
+                return null;
+            }
+        });
     }
 
-    public synchronized List<SpeechChange> getSpeechSince(String bodyName, long time) {
+    public List<SpeechChange> getSpeechSince(String bodyName, long time) {
+        long age = getFrozenWorld().getAge(); // the world itself belongs to the ticking thread
         List<SpeechChange> changes = new ArrayList<SpeechChange>();
         Iterator<SpeechChange> walk = speechChanges.iterator();
         while (walk.hasNext()) {
             SpeechChange speechChange = walk.next();
-            if (world().getAge() - speechChange.getTime() > Constants.SPEECH_TIME_TO_LIVE) {
+            if (age - speechChange.getTime() > Constants.SPEECH_TIME_TO_LIVE) {
                 walk.remove();
             }
             else if (speechChange.getTime() > time && !speechChange.getBodyName().equals(bodyName)) {
@@ -108,7 +222,64 @@ public class WorldHistoryImpl implements WorldHistory {
         return changes;
     }
 
-    public synchronized void setGenome(String bodyName, Genome genome) {
+    public void setGenome(final String bodyName, final Genome genome) {
+        perform("setGenome", new Change<Object>(SET_GENOME) {
+            void write(DataOutputStream dos) throws IOException {
+                dos.writeUTF(bodyName);
+                genome.write(dos);
+            }
+
+            public Object call() throws Exception {
+                setGenomeNow(bodyName, genome);
+                return null;
+            }
+        });
+    }
+
+    public Frozen setTarget(final String bodyName, final Target target) {
+        return perform("setTarget", new Change<Frozen>(SET_TARGET) {
+            void write(DataOutputStream dos) throws IOException {
+                dos.writeUTF(bodyName);
+                writeArrow(target.getLocation(), dos);
+                dos.writeUTF(target.getPreyName());
+            }
+
+            public Frozen call() throws Exception {
+                return setTargetNow(bodyName, target);
+            }
+        });
+    }
+
+    @Override
+    public boolean beingExists(final String bodyName) {
+        return perform("beingExists", new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                return world().getBeing(bodyName) != null;
+            }
+        });
+    }
+
+    public Noise getNoise() {
+        return world().getNoise();
+    }
+
+    @Override
+    public void advanceMinutes(int minutes) {
+        time.minutesAdvance = minutes;
+    }
+
+    private void createBeingNow(String id, String bodyName, Arrow location, Arrow gaze) {
+        world().createBeing(location, gaze, id, bodyName);
+        freeze(); // the spoke fetches the world next, and its being had better be there
+    }
+
+    private void setSpeechNow(String bodyName, String speech) {
+        world().getBeing(bodyName).setSpeech(speech);
+        speechChanges.add(new SpeechChange(world().getAge(), bodyName, speech));
+        changed = true;
+    }
+
+    private void setGenomeNow(String bodyName, Genome genome) {
         Being being = world().getBeing(bodyName);
         if (being != null) {
             if (being.getShield() == null) {
@@ -129,88 +300,283 @@ public class WorldHistoryImpl implements WorldHistory {
         else {
             log.warn("Set genome of "+bodyName+" failed because the being couldn't be found");
         }
+        changed = true;
     }
 
-    public synchronized Frozen setTarget(String bodyName, Target target) {
+    private Frozen setTargetNow(String bodyName, Target target) {
         world().getBeing(bodyName).setTarget(target);
-        frozen = null;
-        return getFrozenWorld();
+        return freeze();
     }
 
-    @Override
-    public boolean beingExists(String bodyName) {
-        return world().getBeing(bodyName) != null;
+    /**
+     * Do a logged change again, the same way it was done the first time
+     *
+     * @param command the change as it was logged
+     * @throws IOException when the change can't be read
+     */
+
+    private void replay(byte[] command) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(command));
+        byte kind = dis.readByte();
+        switch (kind) {
+            case CREATE_BEING:
+                createBeingNow(dis.readUTF(), dis.readUTF(), readArrow(dis), readArrow(dis));
+                break;
+            case SET_SPEECH:
+                setSpeechNow(dis.readUTF(), dis.readUTF());
+                break;
+            case SET_GENOME:
+                setGenomeNow(dis.readUTF(), Genome.read(dis, world().getNoise()));
+                break;
+            case SET_TARGET:
+                setTargetNow(dis.readUTF(), new Target(readArrow(dis), dis.readUTF()));
+                break;
+            default:
+                throw new IOException("Unknown command " + kind);
+        }
     }
 
-    public Noise getNoise() {
-        return world().getNoise();
+    private static void writeArrow(Arrow arrow, DataOutputStream dos) throws IOException {
+        dos.writeDouble(arrow.x);
+        dos.writeDouble(arrow.y);
+        dos.writeDouble(arrow.z);
     }
 
-    @Override
-    public void advanceMinutes(int minutes) {
-        time.minutesAdvance = minutes;
+    private static Arrow readArrow(DataInputStream dis) throws IOException {
+        return new Arrow(dis.readDouble(), dis.readDouble(), dis.readDouble());
     }
 
-    // must detect that this has happened and trigger it, with a message to the spoke
-    // world.predatorConsumePrey(predatorName);
+    /**
+     * Put a command on the queue for the ticking thread and wait until it has been done.  When the ticking
+     * thread has stopped, nothing will ever be done, so the command fails instead.
+     *
+     * @param name what to call the command in the log
+     * @param callable what to do to the world
+     * @return what came of it
+     */
 
-    private File fetchLatestFile(File directory) {
-        File[] subdirectories = directory.listFiles(new FileFilter() {
-            public boolean accept(File file) {
-                return file.isDirectory() && file.getName().matches("[DH]\\d{2,3}");
+    private <T> T perform(String name, Callable<T> callable) {
+        Command<T> command = new Command<T>(name, callable);
+        if (callable instanceof Change) {
+            try {
+                command.change = ((Change<?>) callable).toBytes();
             }
-        });
-        if (subdirectories == null || subdirectories.length == 0) {
-            File[] worldFiles = directory.listFiles(new FileFilter() {
-                public boolean accept(File file) {
-                    return !file.isDirectory() && file.getName().endsWith(EXTENSION);
+            catch (IOException e) {
+                throw new RuntimeException("Unable to log " + name, e);
+            }
+        }
+        commands.add(command);
+        if (time.stopped != null) {
+            failCommands(); // it may have stopped before the command was added
+        }
+        LockSupport.unpark(time.thread);
+        try {
+            return command.get();
+        }
+        catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while waiting for " + name, e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Unable to " + name, e.getCause());
+        }
+    }
+
+    private void failCommands() {
+        Command<?> command;
+        while ((command = commands.poll()) != null) {
+            command.fail(new RuntimeException("No world, because time has stopped", time.stopped));
+        }
+    }
+
+    private void performCommands() {
+        Command<?> command;
+        while ((command = commands.poll()) != null) {
+            batch.add(command);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        logChanges();
+        for (int walk = 0; walk < batch.size(); walk++) {
+            command = batch.get(walk);
+            command.run();
+            Latency latency = latencies.get(command.name);
+            if (latency == null) {
+                latencies.put(command.name, latency = new Latency());
+            }
+            latency.add(System.nanoTime() - command.submitted);
+        }
+        batch.clear();
+    }
+
+    private void logChanges() {
+        if (time.world == null || commandLog == null) {
+            return; // they will fail anyway
+        }
+        try {
+            for (Command<?> command : batch) {
+                if (command.change != null) {
+                    commandLog.append(time.world.getAge(), command.change);
                 }
-            });
-            if (worldFiles == null || worldFiles.length == 0) {
-                return null;
             }
-            else {
-                Arrays.sort(worldFiles, new FileNameComparator());
-                return worldFiles[worldFiles.length - 1];
+            commandLog.sync();
+        }
+        catch (IOException e) {
+            log.error("Unable to log commands, so the changes among them are refused", e);
+            commandLog.abandon(); // nothing more is logged, or done, until the next save starts a log
+            Iterator<Command<?>> walk = batch.iterator();
+            while (walk.hasNext()) {
+                Command<?> command = walk.next();
+                if (command.change != null) {
+                    command.fail(new RuntimeException("Unable to log " + command.name, e));
+                    walk.remove();
+                }
             }
         }
-        else {
-            Arrays.sort(subdirectories, new FileNameComparator());
-            return fetchLatestFile(subdirectories[subdirectories.length - 1]);
+    }
+
+    private void logLatencies() {
+        for (Map.Entry<String, Latency> entry : latencies.entrySet()) {
+            Latency latency = entry.getValue();
+            log.info(String.format(
+                    "%d x %s waited %.2fms on average and %.2fms at most",
+                    latency.count, entry.getKey(), latency.total / 1e6 / latency.count, latency.longest / 1e6
+            ));
+        }
+        latencies.clear();
+    }
+
+    private static class Command<T> extends FutureTask<T> {
+        private String name;
+        private long submitted = System.nanoTime();
+        private byte[] change;
+
+        private Command(String name, Callable<T> callable) {
+            super(callable);
+            this.name = name;
+        }
+
+        private void fail(Throwable throwable) {
+            setException(throwable);
+        }
+    }
+
+    /**
+     * A command that changes the world, which is written to the command log before it is done
+     */
+
+    private static abstract class Change<T> implements Callable<T> {
+        private byte kind;
+
+        protected Change(byte kind) {
+            this.kind = kind;
+        }
+
+        abstract void write(DataOutputStream dos) throws IOException;
+
+        private byte[] toBytes() throws IOException {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(outputStream);
+            dos.writeByte(kind);
+            write(dos);
+            dos.close();
+            return outputStream.toByteArray();
         }
     }
 
-    private static class FileNameComparator implements Comparator<File> {
-        public int compare(File fileA, File fileB) {
-            return fileA.getName().compareTo(fileB.getName());
+    private static class Latency {
+        private int count;
+        private long total;
+        private long longest;
+
+        private void add(long nanos) {
+            count++;
+            total += nanos;
+            if (nanos > longest) {
+                longest = nanos;
+            }
+        }
+    }
+
+    // must detect that this has happened and trigger it, with a message to the spoke
+    // world.predatorConsumePrey(predatorName);
+
+    /**
+     * Freeze the world and publish it, which only the ticking thread does
+     *
+     * @return the frozen world
+     */
+
+    private Frozen freeze() {
+        try {
+            log.info("Freezing...");
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            for (Being being : world().getBeings()) {
+                being.getBody().executeTransformations(null);
+            }
+            changed = false;
+            world().write(new DataOutputStream(outputStream));
+            Frozen fresh = new Frozen(outputStream.toByteArray(), world().getAge());
+            frozen.set(fresh);
+            return fresh;
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
         }
     }
 
     private void saveTheWorld() {
         try {
-            Frozen frozen = getFrozenWorld();
-            File directory = new File(home.getDirectory(), pathFormat(frozen.getAge()));
-            //noinspection ResultOfMethodCallIgnored
-            directory.mkdirs();
-            File worldFile = new File(directory, fileNameFormat(frozen.getAge()));
-            FileOutputStream fos = new FileOutputStream(worldFile);
-            fos.write(frozen.getWorld());
-            fos.close();
-            log.info("Saved " + world().getBeings().size() + " beings to " + worldFile.getAbsolutePath());
+            Frozen frozen = freeze();
+            List<String> bodyNames = new ArrayList<String>();
+            for (Being being : world().getBeings()) {
+                bodyNames.add(being.toString());
+            }
+            commandLog.start(frozen.getAge(), world().getNoise().copySeed());
+            saver.execute(new Save(frozen, bodyNames, world().getBeings().size()));
+        }
+        catch (RejectedExecutionException e) {
+            log.warn("Skipped saving at age " + world().getAge() + " because the saves before it are still waiting");
         }
         catch (Exception e) {
             log.error("could not save", e);
         }
     }
 
-    private String pathFormat(long age) {
-        int hour = (int) (age / (60 * 60) % 24);
-        int day = (int) (age / (60 * 60 * 24));
-        return "D" + DAY_FORMATTER.format(day) + File.separator + "H" + HOUR_FORMATTER.format(hour);
-    }
+    /**
+     * Writing a frozen world to the archive, on the saving thread
+     */
+
+    private class Save implements Runnable {
+        private Frozen frozen;
+        private List<String> bodyNames;
+        private int beingCount;
+        private long submitted = System.nanoTime();
 
-    private String fileNameFormat(long age) {
-        return WORLD_NUMBER_FORMATTER.format(age) + EXTENSION;
+        private Save(Frozen frozen, List<String> bodyNames, int beingCount) {
+            this.frozen = frozen;
+            this.bodyNames = bodyNames;
+            this.beingCount = beingCount;
+        }
+
+        public void run() {
+            try {
+                long started = System.nanoTime();
+                File worldFile = archive.save(frozen.getWorld(), frozen.getAge(), bodyNames);
+                commandLog.discardBefore(frozen.getAge());
+                log.info(String.format(
+                        "Saved %d beings to %s in %d bytes, writing took %.2fms after waiting %.2fms",
+                        beingCount, worldFile.getAbsolutePath(), worldFile.length(),
+                        (System.nanoTime() - started) / 1e6, (started - submitted) / 1e6
+                ));
+            }
+            catch (Exception e) {
+                log.error("could not save", e);
+            }
+        }
     }
 
     private World world() {
@@ -223,61 +589,137 @@ public class WorldHistoryImpl implements WorldHistory {
     private class Time implements Runnable {
         private World world;
         private int minutesAdvance;
+        private boolean replaying;
+        private volatile Thread thread;
+        private volatile Throwable stopped;
 
         public void start() {
-            Thread thread = new Thread(this);
+            thread = new Thread(this);
             thread.setDaemon(true);
             thread.start();
         }
 
         public void run() {
-            while (true) {
-                try {
-                    Thread.sleep(Constants.MILLIS_PER_ITERATION);
-                }
-                catch (InterruptedException e) {
-                    break;
+            try {
+                tick();
+                stopped = new InterruptedException("Time was interrupted");
+            }
+            catch (Throwable throwable) {
+                log.error("Time has stopped", throwable);
+                stopped = throwable;
+            }
+            failCommands(); // and any that come later fail right away
+        }
+
+        private void tick() {
+            long nextTick = System.currentTimeMillis() + Constants.MILLIS_PER_ITERATION;
+            while (!Thread.currentThread().isInterrupted()) {
+                performCommands();
+                long wait = nextTick - System.currentTimeMillis();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait * 1000000L); // a new command wakes it up early
+                    continue;
                 }
                 if (world == null) {
-                    try {
-                        File latestFile = fetchLatestFile(home.getDirectory());
-                        if (latestFile == null) {
-                            world = World.create();
-                            world.addListener(notificationSender);
-                            log.info("Created world");
-                            for (int walk = 0; walk < Constants.ITERATIONS_PER_HOUR * 24 / Constants.ITERATIONS_PER_PATCH_LIFE; walk++) {
-                                this.world.experienceTime((int) Constants.ITERATIONS_PER_PATCH_LIFE);
-                            }
-                        }
-                        else {
-                            DataInputStream dis = new DataInputStream(new FileInputStream(latestFile));
-                            world = World.read(dis);
-                            world.addListener(notificationSender);
-                            log.info("Loaded " + world.getBeings().size() + " beings from " + latestFile.getAbsolutePath());
-                            dis.close();
-                        }
-                    }
-                    catch (IOException e) {
-                        throw new RuntimeException("Unable to read latest world");
-                    }
+                    awaken();
                 }
                 if (minutesAdvance > 0) {
                     for (int walk = 0; walk < 60; walk++) {
                         iterate();
+                        performCommands();
                     }
                     minutesAdvance--;
                 }
                 else {
                     iterate();
                 }
+                nextTick = System.currentTimeMillis() + Constants.MILLIS_PER_ITERATION;
             }
         }
 
-        private synchronized void iterate() {
+        private void awaken() {
+            File latestFile;
+            List<CommandLog.Replay> replays = new ArrayList<CommandLog.Replay>();
+            try {
+                SurfaceTopology.setDirectory(new File(home.getDirectory(), TOPOLOGY_DIRECTORY));
+                archive = new WorldArchive(home.getDirectory(), keyframeInterval);
+                archive.discardTemporaries();
+                commandLog = new CommandLog(new File(home.getDirectory(), COMMAND_DIRECTORY));
+                latestFile = archive.fetchLatestFile();
+                if (latestFile == null) {
+                    world = World.create(frequency);
+                    world.setParallelism(parallelism);
+                    world.setQuiescence(Constants.QUIESCENT_SPEED, Constants.QUIESCENT_TICKS);
+                    world.addListener(notificationSender);
+                    log.info("Created world");
+                    for (int walk = 0; walk < Constants.ITERATIONS_PER_HOUR * 24 / Constants.ITERATIONS_PER_PATCH_LIFE; walk++) {
+                        this.world.experienceTime((int) Constants.ITERATIONS_PER_PATCH_LIFE);
+                    }
+                }
+                else {
+                    replays = commandLog.fetchSince(WorldArchive.getAge(latestFile));
+                    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(archive.read(latestFile)));
+                    world = World.read(dis, replays.isEmpty() ? new PseudoNoise() : new PseudoNoise(replays.get(0).getSeed()));
+                    world.setParallelism(parallelism);
+                    world.setQuiescence(Constants.QUIESCENT_SPEED, Constants.QUIESCENT_TICKS);
+                    world.addListener(notificationSender);
+                    log.info("Loaded " + world.getBeings().size() + " beings from " + latestFile.getAbsolutePath());
+                    dis.close();
+                }
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Unable to read latest world");
+            }
+            freeze();
+            int replayed = 0;
+            replaying = true;
+            for (CommandLog.Replay replay : replays) { // one after the other, each following a save
+                for (CommandLog.Entry entry : replay.getEntries()) {
+                    while (world.getAge() < entry.getAge()) {
+                        iterate();
+                    }
+                    try {
+                        replay(entry.getCommand());
+                    }
+                    catch (Exception e) {
+                        log.warn("Replayed command failed, as it did before", e);
+                    }
+                    replayed++;
+                }
+            }
+            replaying = false;
+            if (replayed > 0) {
+                log.info("Replayed " + replayed + " commands up to age " + world.getAge());
+                saveTheWorld(); // so that the logs can start over
+            }
+            else if (latestFile == null) {
+                saveTheWorld(); // the log needs a saved world to start from
+            }
+            else {
+                try {
+                    commandLog.start(world.getAge(), world.getNoise().copySeed());
+                }
+                catch (IOException e) {
+                    throw new RuntimeException("Unable to start the command log", e);
+                }
+            }
+        }
+
+        private void iterate() {
             try {
                 world.experienceTime(1);
                 if (world.getAge() % Constants.ITERATIONS_PER_SAVE == 0) {
-                    saveTheWorld();
+                    if (replaying) {
+                        freeze(); // as it was when it was saved, and the logs being replayed are kept
+                    }
+                    else {
+                        log.info("Sleeping " + world.getSleepingCount() + ", awake " + world.getAwakeCount());
+                        saveTheWorld();
+                        logLatencies();
+                    }
+                }
+                else if (changed || world.getAge() - frozen.get().getAge() >= freezeInterval) {
+                    freeze();
                 }
             }
             catch (Exception e) {
@@ -0,0 +1,188 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+package org.darwinathome.server.persistence.impl;
+
+import org.darwinathome.genetics.Noise;
+import org.darwinathome.genetics.impl.PseudoNoise;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Make sure logged commands come back as they were appended, up to where a log was cut off
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class TestCommandLog {
+    private static final byte[] SEED_BYTES = {
+            (byte) 0x8A, (byte) 0x98, (byte) 0xAF, (byte) 0x9B, (byte) 0x63, (byte) 0xBB, (byte) 0x98, (byte) 0x31,
+            (byte) 0x62, (byte) 0x11, (byte) 0x3A, (byte) 0x71, (byte) 0x7F, (byte) 0x7E, (byte) 0x45, (byte) 0xAE
+    };
+    private static final long AGE = 600;
+    private File directory;
+    private Noise noise;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("commands", "");
+        assertTrue(directory.delete() && directory.mkdirs());
+        noise = new PseudoNoise(new PseudoNoise.ClonableSeed(SEED_BYTES, 0));
+        for (int walk = 0; walk < 1000; walk++) {
+            noise.nextDouble();
+        }
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+
+    @Test
+    public void appendAndReplay() throws IOException {
+        writeLog(AGE, 3);
+        List<CommandLog.Replay> replays = new CommandLog(directory).fetchSince(AGE);
+        assertEquals("replays", 1, replays.size());
+        CommandLog.Replay replay = replays.get(0);
+        assertEquals("age", AGE, replay.getAge());
+        assertEntries(replay, 3);
+        Noise replayed = new PseudoNoise(replay.getSeed());
+        for (int walk = 0; walk < 100; walk++) {
+            assertEquals("noise " + walk, noise.nextDouble(), replayed.nextDouble(), 0);
+        }
+    }
+
+    @Test
+    public void cutOffInCommand() throws IOException {
+        File file = writeLog(AGE, 3);
+        truncate(file, file.length() - 2);
+        assertEntries(new CommandLog(directory).fetchSince(AGE).get(0), 2);
+    }
+
+    @Test
+    public void cutOffInLength() throws IOException {
+        File file = writeLog(AGE, 3);
+        truncate(file, file.length() - command(2).length - 2);
+        assertEntries(new CommandLog(directory).fetchSince(AGE).get(0), 2);
+    }
+
+    @Test
+    public void cutOffInAge() throws IOException {
+        File file = writeLog(AGE, 3);
+        truncate(file, file.length() - command(2).length - 4 - 3);
+        assertEntries(new CommandLog(directory).fetchSince(AGE).get(0), 2);
+    }
+
+    @Test
+    public void cutOffInHeader() throws IOException {
+        writeLog(AGE, 2);
+        File file = writeLog(AGE * 2, 0);
+        for (long length : new long[]{file.length() - 2, 10, 2, 0}) {
+            truncate(file, length);
+            List<CommandLog.Replay> replays = new CommandLog(directory).fetchSince(AGE);
+            assertEquals("replays at " + length, 1, replays.size());
+            assertEntries(replays.get(0), 2);
+            assertEquals("nothing to replay at " + length, 0, new CommandLog(directory).fetchSince(AGE * 2).size());
+        }
+    }
+
+    @Test
+    public void abandoned() throws IOException {
+        CommandLog commandLog = new CommandLog(directory);
+        commandLog.start(AGE, noise.copySeed());
+        commandLog.append(AGE, command(0));
+        commandLog.sync();
+        commandLog.append(AGE + 1, command(1));
+        commandLog.abandon();
+        try {
+            commandLog.append(AGE + 2, command(2));
+            fail("Appended to an abandoned log");
+        }
+        catch (IOException e) {
+            // as it should be
+        }
+        assertEntries(new CommandLog(directory).fetchSince(AGE).get(0), 1);
+    }
+
+    @Test
+    public void logsFollowEachOther() throws IOException {
+        writeLog(AGE, 2);
+        writeLog(AGE * 2, 3);
+        List<CommandLog.Replay> replays = new CommandLog(directory).fetchSince(AGE);
+        assertEquals("replays", 2, replays.size());
+        assertEntries(replays.get(0), 2);
+        assertEntries(replays.get(1), 3);
+        assertEquals("later", 1, new CommandLog(directory).fetchSince(AGE * 2).size());
+        assertEquals("no log at that age", 0, new CommandLog(directory).fetchSince(AGE + 1).size());
+        new CommandLog(directory).discardBefore(AGE * 2);
+        assertEquals("discarded", 0, new CommandLog(directory).fetchSince(AGE).size());
+        assertEquals("kept", 1, new CommandLog(directory).fetchSince(AGE * 2).size());
+    }
+
+    private File writeLog(long age, int count) throws IOException {
+        CommandLog commandLog = new CommandLog(directory);
+        commandLog.start(age, noise.copySeed());
+        for (int walk = 0; walk < count; walk++) {
+            commandLog.append(age + walk, command(walk));
+        }
+        commandLog.sync();
+        commandLog.close();
+        File[] files = directory.listFiles();
+        assertTrue(files != null);
+        for (File file : files) {
+            if (file.getName().startsWith(String.format("%09d", age))) {
+                return file;
+            }
+        }
+        throw new RuntimeException("No log for " + age);
+    }
+
+    private static void assertEntries(CommandLog.Replay replay, int count) {
+        assertEquals("entries", count, replay.getEntries().size());
+        for (int walk = 0; walk < count; walk++) {
+            CommandLog.Entry entry = replay.getEntries().get(walk);
+            assertEquals("age " + walk, replay.getAge() + walk, entry.getAge());
+            assertTrue("command " + walk, Arrays.equals(command(walk), entry.getCommand()));
+        }
+    }
+
+    private static byte[] command(int number) {
+        byte[] command = new byte[10 + number * 7];
+        for (int walk = 0; walk < command.length; walk++) {
+            command[walk] = (byte) (number * 31 + walk);
+        }
+        return command;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(length);
+        }
+        finally {
+            randomAccessFile.close();
+        }
+    }
+}
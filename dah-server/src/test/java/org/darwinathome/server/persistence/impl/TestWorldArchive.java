@@ -0,0 +1,191 @@
+// ========= Copyright (C) 2009, 2010 Gerald de Jong =================
+// This file is part of the Darwin at Home project, distributed
+// under the GNU General Public License, version 3.
+// You should have received a copy of this license in "license.txt",
+// but if not, see http://www.gnu.org/licenses/gpl-3.0.txt.
+// ===================================================================
+package org.darwinathome.server.persistence.impl;
+
+import org.darwinathome.Constants;
+import org.darwinathome.body.Being;
+import org.darwinathome.geometry.math.Arrow;
+import org.darwinathome.universe.World;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Make sure a world saved as a keyframe and deltas reads back exactly as it was written
+ *
+ * @author Gerald de Jong <geralddejong@gmail.com>
+ */
+
+public class TestWorldArchive {
+    private static final int KEYFRAME_INTERVAL = 3;
+    private File directory;
+    private World world;
+
+    @Before
+    public void createWorld() throws IOException {
+        directory = File.createTempFile("archive", "");
+        assertTrue(directory.delete() && directory.mkdirs());
+        world = World.create(Constants.FREQUENCY);
+        for (int walk = 0; walk < 3; walk++) {
+            Arrow location = new Arrow(1, walk, 3).setSpan(Constants.ROAM_RADIUS);
+            Arrow gaze = new Arrow(0, 0, 1);
+            gaze.sub(location, location.dot(gaze) / location.quadrance()).normalize();
+            world.createBeing(location, gaze, "being" + walk + "@darwinathome.org");
+        }
+    }
+
+    @After
+    public void deleteDirectory() {
+        delete(directory);
+    }
+
+    @Test
+    public void keyframeAndDeltas() throws IOException {
+        WorldArchive archive = new WorldArchive(directory, KEYFRAME_INTERVAL);
+        byte[] keyframe = write(world);
+        File keyframeFile = archive.save(keyframe, world.getAge(), bodyNames(world));
+        assertTrue(keyframeFile.getName(), keyframeFile.getName().endsWith(".world"));
+        world.experienceTime(100);
+        byte[] later = write(world);
+        File deltaFile = archive.save(later, world.getAge(), bodyNames(world));
+        assertTrue(deltaFile.getName(), deltaFile.getName().endsWith(".delta"));
+        assertTrue("delta smaller than the world", deltaFile.length() < later.length);
+        assertTrue("keyframe", Arrays.equals(keyframe, archive.read(keyframeFile)));
+        assertTrue("delta", Arrays.equals(later, archive.read(deltaFile)));
+        assertEquals("latest", deltaFile, archive.fetchLatestFile());
+        assertEquals("age", world.getAge(), WorldArchive.getAge(deltaFile));
+        World read = World.read(new DataInputStream(new ByteArrayInputStream(archive.read(deltaFile))));
+        assertEquals("age read", world.getAge(), read.getAge());
+        assertEquals("beings read", world.getBeings().size(), read.getBeings().size());
+        world.experienceTime(100);
+        File third = archive.save(write(world), world.getAge(), bodyNames(world));
+        assertTrue("still a delta", third.getName().endsWith(".delta"));
+        world.experienceTime(100);
+        File fourth = archive.save(write(world), world.getAge(), bodyNames(world));
+        assertTrue("keyframe again", fourth.getName().endsWith(".world"));
+    }
+
+    @Test
+    public void sameChangedAndWhole() throws IOException {
+        WorldArchive archive = new WorldArchive(directory, KEYFRAME_INTERVAL);
+        byte[] keyframe = write(world);
+        List<String> names = bodyNames(world);
+        archive.save(keyframe, 600, names);
+        List<byte[]> beings = splitBeings(keyframe);
+        byte[] changed = beings.get(1).clone();
+        changed[changed.length - 1] ^= 0x55;
+        byte[] whole = {0, 0, 0, 5, 1, 2, 3, 4, 5};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(keyframe, 0, World.getBeingsOffset(keyframe));
+        out.write(beings.get(2)); // same, in another place
+        out.write(changed);
+        out.write(whole);
+        byte[] delta = out.toByteArray();
+        List<String> deltaNames = new ArrayList<String>();
+        deltaNames.add(names.get(2));
+        deltaNames.add(names.get(1));
+        deltaNames.add("newcomer");
+        File deltaFile = archive.save(delta, 1200, deltaNames);
+        assertTrue(deltaFile.getName(), deltaFile.getName().endsWith(".delta"));
+        assertTrue("delta", Arrays.equals(delta, archive.read(deltaFile)));
+    }
+
+    @Test
+    public void missingKeyframe() throws IOException {
+        WorldArchive archive = new WorldArchive(directory, KEYFRAME_INTERVAL);
+        File keyframeFile = archive.save(write(world), world.getAge(), bodyNames(world));
+        world.experienceTime(100);
+        File deltaFile = archive.save(write(world), world.getAge(), bodyNames(world));
+        assertTrue(keyframeFile.delete());
+        try {
+            archive.read(deltaFile);
+            fail("Read a delta without its keyframe");
+        }
+        catch (IOException e) {
+            // as it should be
+        }
+    }
+
+    @Test
+    public void firstSaveAfterRestartIsKeyframe() throws IOException {
+        new WorldArchive(directory, KEYFRAME_INTERVAL).save(write(world), world.getAge(), bodyNames(world));
+        world.experienceTime(100);
+        File file = new WorldArchive(directory, KEYFRAME_INTERVAL).save(write(world), world.getAge(), bodyNames(world));
+        assertTrue(file.getName(), file.getName().endsWith(".world"));
+    }
+
+    @Test
+    public void unfinishedHour() throws IOException {
+        WorldArchive archive = new WorldArchive(directory, KEYFRAME_INTERVAL);
+        File saved = archive.save(write(world), 3000, bodyNames(world));
+        File unfinished = new File(new File(directory, "D000" + File.separator + "H01"), "000003600.world.tmp");
+        assertTrue(unfinished.getParentFile().mkdirs() && unfinished.createNewFile());
+        File emptyDay = new File(directory, "D001" + File.separator + "H00");
+        assertTrue(emptyDay.mkdirs());
+        assertEquals("latest whole", saved, archive.fetchLatestFile());
+        archive.discardTemporaries();
+        assertTrue("unfinished discarded", !unfinished.exists());
+        assertTrue("saved kept", saved.exists());
+        assertEquals("latest still", saved, archive.fetchLatestFile());
+    }
+
+    private static byte[] write(World world) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Being being : world.getBeings()) {
+            being.getBody().executeTransformations(null);
+        }
+        world.write(new DataOutputStream(out));
+        return out.toByteArray();
+    }
+
+    private static List<String> bodyNames(World world) {
+        List<String> names = new ArrayList<String>();
+        for (Being being : world.getBeings()) {
+            names.add(being.toString());
+        }
+        return names;
+    }
+
+    private static List<byte[]> splitBeings(byte[] world) throws IOException {
+        List<byte[]> beings = new ArrayList<byte[]>();
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(world));
+        int offset = World.getBeingsOffset(world);
+        dis.skipBytes(offset);
+        while (offset < world.length) {
+            int length = 4 + dis.readInt();
+            beings.add(Arrays.copyOfRange(world, offset, offset + length));
+            dis.skipBytes(length - 4);
+            offset += length;
+        }
+        return beings;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}